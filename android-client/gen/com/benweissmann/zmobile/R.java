@@ -42,8 +42,10 @@ public final class R {
         public static final int class_list_menu_clear_hidden=0x7f080032;
         public static final int class_list_menu_compose=0x7f08002e;
         public static final int class_list_menu_feedback=0x7f080030;
+        public static final int class_list_menu_metrics=0x7f080046;
         public static final int class_list_menu_refresh=0x7f08002f;
         public static final int class_list_menu_reset=0x7f080033;
+        public static final int class_list_menu_search=0x7f080042;
         public static final int class_list_menu_settings=0x7f080031;
         public static final int class_list_star_class=0x7f08002a;
         public static final int class_list_unstar_class=0x7f08002b;
@@ -71,6 +73,7 @@ public final class R {
         public static final int list_header=0x7f080017;
         public static final int list_loading=0x7f080013;
         public static final int list_view=0x7f080014;
+        public static final int metrics_report=0x7f080047;
         public static final int next_zephyrgrams_item=0x7f080019;
         public static final int next_zephyrgrams_spinner=0x7f08001a;
         public static final int personal_zephyr_from_me_prefix_text=0x7f080024;
@@ -82,6 +85,9 @@ public final class R {
         public static final int prev_zephyrgrams_spinner=0x7f08001c;
         public static final int remember_credentials=0x7f080011;
         public static final int retry_button=0x7f080016;
+        public static final int search_no_results=0x7f080043;
+        public static final int search_results=0x7f080044;
+        public static final int search_text=0x7f080045;
         public static final int zephyrgram_body=0x7f080027;
         public static final int zephyrgram_class=0x7f08001f;
         public static final int zephyrgram_instance=0x7f080020;
@@ -111,8 +117,10 @@ public final class R {
         public static final int credentials_prompt=0x7f030005;
         public static final int list=0x7f030006;
         public static final int list_header=0x7f030007;
+        public static final int metrics=0x7f03000e;
         public static final int next_zephyrgrams_list_item=0x7f030008;
         public static final int prev_zephyrgrams_list_item=0x7f030009;
+        public static final int search=0x7f03000d;
         public static final int zephyrgram_list_item=0x7f03000a;
         public static final int zephyrgram_set_list_item=0x7f03000b;
         public static final int zserv_prompt=0x7f03000c;
@@ -155,6 +163,7 @@ public final class R {
         public static final int load_error_desc=0x7f060034;
         public static final int load_failed=0x7f060032;
         public static final int mark_read_error=0x7f060031;
+        public static final int metrics_label=0x7f060043;
         public static final int more_zephyrs=0x7f060009;
         public static final int next_zephyrgrams=0x7f06000e;
         public static final int next_zephyrgrams_loading=0x7f06000f;
@@ -167,6 +176,7 @@ public final class R {
         public static final int personal_zephyr_to_me_prefix=0x7f060014;
         public static final int pref_kerberos_password=0x7f060002;
         public static final int pref_kerberos_username=0x7f060001;
+        public static final int pref_metrics=0x7f060044;
         public static final int pref_remember_me=0x7f060003;
         public static final int pref_zserv_keystore=0x7f060005;
         public static final int pref_zserv_port=0x7f060004;
@@ -179,6 +189,9 @@ public final class R {
         public static final int remember_credentials_label=0x7f06003a;
         public static final int reset_label=0x7f06003e;
         public static final int retry_button=0x7f060033;
+        public static final int search_hint=0x7f060041;
+        public static final int search_label=0x7f060040;
+        public static final int search_no_results=0x7f060042;
         public static final int send_fail_toast=0x7f060022;
         public static final int send_start_toast=0x7f060020;
         public static final int send_success_toast=0x7f060021;
@@ -187,6 +200,7 @@ public final class R {
         public static final int store_credentials_warning=0x7f06003b;
         public static final int submit=0x7f060038;
         public static final int username_label=0x7f060035;
+        public static final int yesterday=0x7f060045;
         public static final int zephyrgram_list_reply_class=0x7f060029;
         public static final int zephyrgram_list_reply_personal=0x7f06002a;
         public static final int zephyrgram_list_show_class=0x7f06002b;
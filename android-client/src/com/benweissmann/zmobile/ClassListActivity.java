@@ -3,11 +3,13 @@ package com.benweissmann.zmobile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import com.benweissmann.zmobile.components.LoadFlipper;
 import com.benweissmann.zmobile.listadapters.ZephyrClassListAdapter;
 import com.benweissmann.zmobile.listadapters.ZephyrgramSetListAdapter;
+import com.benweissmann.zmobile.service.Metrics;
 import com.benweissmann.zmobile.service.ZephyrService.ZephyrBinder;
 import com.benweissmann.zmobile.service.ZephyrServiceBridge;
 import com.benweissmann.zmobile.service.callbacks.BinderCallback;
@@ -56,6 +58,13 @@ public class ClassListActivity extends ZephyrgramSetActivity<ZephyrClass> {
         return true;
     }
     
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // the metrics screen is only useful while metrics are on
+        menu.findItem(R.id.class_list_menu_metrics).setVisible(Metrics.isEnabled());
+        return true;
+    }
+    
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Intent intent;
@@ -71,6 +80,10 @@ public class ClassListActivity extends ZephyrgramSetActivity<ZephyrClass> {
         case R.id.class_list_menu_refresh:
             this.update();
             return true;
+        case R.id.class_list_menu_search:
+            intent = new Intent(this, SearchActivity.class);
+            startActivity(intent);
+            return true;
         case R.id.class_list_menu_settings:
             intent = new Intent(this, ZMobilePreferencesActivity.class);
             startActivity(intent);
@@ -81,6 +94,10 @@ public class ClassListActivity extends ZephyrgramSetActivity<ZephyrClass> {
         case R.id.class_list_menu_reset:
             this.resetBackend();
             return true;
+        case R.id.class_list_menu_metrics:
+            intent = new Intent(this, MetricsActivity.class);
+            startActivity(intent);
+            return true;
         default:
             return super.onOptionsItemSelected(item);
         }
@@ -124,10 +141,24 @@ public class ClassListActivity extends ZephyrgramSetActivity<ZephyrClass> {
     }
 
     @Override
-    protected void getItems(ZephyrBinder b,
+    protected String getSnapshotKey() {
+        return "classes";
+    }
+    
+    @Override
+    protected void getItems(ZephyrBinder b, int offset, int perpage,
                             ZephyrCallback<ZephyrClass[]> callback) {
         
-        b.fetchClasses(this, callback);
+        // unread classes are all fetched by getPriorityItems, so only page
+        // through the rest
+        b.fetchReadClasses(this, offset, perpage, callback);
+    }
+    
+    @Override
+    protected void getPriorityItems(ZephyrBinder b,
+                                    ZephyrCallback<ZephyrClass[]> callback) {
+        
+        b.fetchUnreadClasses(this, 0, -1, callback);
     }
 
     @Override
@@ -178,21 +209,14 @@ public class ClassListActivity extends ZephyrgramSetActivity<ZephyrClass> {
     }
     
     @Override
-    protected void refreshHeaderViews(ListView listView, ArrayList<ZephyrClass> items) {
+    protected void refreshHeaderViews(ListView listView, List<ZephyrClass> items) {
         super.refreshHeaderViews(listView, items);
         
         int personalUnreadCount = 0;
-        int i = 0;
-        while(i < items.size()) {
-            if(items.get(i).isPersonals()) {
-                personalUnreadCount = items.get(i).getUnreadCount();
-                items.remove(i);
-            }
-            else if(items.get(i).isHidden()) {
-                items.remove(i);
-            }
-            else {
-                i++;
+        for(ZephyrClass cls : items) {
+            if(cls.isPersonals()) {
+                personalUnreadCount = cls.getUnreadCount();
+                break;
             }
         }
         
@@ -206,16 +230,37 @@ public class ClassListActivity extends ZephyrgramSetActivity<ZephyrClass> {
         }
     }
     
+    /**
+     * Partitions the classes in one pass: starred classes first, then the
+     * rest, each in the order they were fetched: unread classes first, then
+     * the rest, most recently active first.
+     * Hidden classes and the personals class, which has its own header, are
+     * left out.
+     */
     @Override
-    protected ZephyrgramSetListAdapter<ZephyrClass> getListAdapter(ArrayList<ZephyrClass> items) {
-        int nextStarredIndex = 0;
+    protected ArrayList<ZephyrClass> arrangeItems(List<ZephyrClass> items) {
+        ArrayList<ZephyrClass> arranged = new ArrayList<ZephyrClass>(items.size());
+        ArrayList<ZephyrClass> normal = new ArrayList<ZephyrClass>(items.size());
         
-        for(int i = 0; i < items.size(); i++) {
-            if(starred.contains(items.get(i))) {
-                items.add(nextStarredIndex++, items.remove(i));
+        for(ZephyrClass cls : items) {
+            if(cls.isPersonals() || cls.isHidden()) {
+                continue;
+            }
+            
+            if(cls.isStarred() || this.starred.contains(cls.getName())) {
+                arranged.add(cls);
+            }
+            else {
+                normal.add(cls);
             }
         }
         
+        arranged.addAll(normal);
+        return arranged;
+    }
+    
+    @Override
+    protected ZephyrgramSetListAdapter<ZephyrClass> getListAdapter(ArrayList<ZephyrClass> items) {
         return new ZephyrClassListAdapter(this, items, this.starred);
     }
     
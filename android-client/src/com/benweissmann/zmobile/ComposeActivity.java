@@ -1,5 +1,9 @@
 package com.benweissmann.zmobile;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.benweissmann.zmobile.service.ZephyrServiceBridge;
 import com.benweissmann.zmobile.service.ZephyrService.ZephyrBinder;
 import com.benweissmann.zmobile.service.callbacks.BinderCallback;
@@ -83,9 +87,9 @@ public class ComposeActivity extends TabActivity {
                 final Button sendButton = (Button) v.findViewById(R.id.compose_class_send);
                 sendButton.setOnClickListener(new OnClickListener() {
                     public void onClick(View v) {
-                        send(new Zephyrgram(clsText.getText().toString(),
-                                            instanceText.getText().toString(),
-                                            bodyText.getText().toString()));
+                        send(Collections.singletonList(new Zephyrgram(clsText.getText().toString(),
+                                                                      instanceText.getText().toString(),
+                                                                      bodyText.getText().toString())));
                         
                         
                     }
@@ -108,8 +112,21 @@ public class ComposeActivity extends TabActivity {
                 final Button sendButton = (Button) v.findViewById(R.id.compose_personal_send);
                 sendButton.setOnClickListener(new OnClickListener() {
                     public void onClick(View v) {
-                        send(new Zephyrgram(toText.getText().toString(),
-                                            bodyText.getText().toString()));
+                        // a personal can go to several people at once
+                        String body = bodyText.getText().toString();
+                        List<Zephyrgram> zephyrgrams = new ArrayList<Zephyrgram>();
+                        for(String to : toText.getText().toString().split("[\\s,]+")) {
+                            if(to.length() > 0) {
+                                zephyrgrams.add(new Zephyrgram(to, body));
+                            }
+                        }
+                        
+                        if(zephyrgrams.isEmpty()) {
+                            // no recipients; send it as typed, as before
+                            zephyrgrams.add(new Zephyrgram(toText.getText().toString(), body));
+                        }
+                        
+                        send(zephyrgrams);
                         
                     }
                 });
@@ -172,24 +189,28 @@ public class ComposeActivity extends TabActivity {
         }
     }
     
-    private void send(final Zephyrgram z) {
-        final Toast toast = Toast.makeText(this, getString(R.string.send_start_toast), Toast.LENGTH_SHORT);
-        
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        ZephyrServiceBridge.release(this);
+    }
+    
+    private void send(final List<Zephyrgram> zephyrgrams) {
         // disable send buttons to prevent double sending
         setSendEnabled(false);
         
-        
         ZephyrServiceBridge.getBinder(this, new BinderCallback() {
             public void run(ZephyrBinder binder) {
-                binder.send(ComposeActivity.this, z, new ZephyrStatusCallback() {
+                binder.sendAll(ComposeActivity.this, zephyrgrams, new ZephyrStatusCallback() {
                     
                     public void onSuccess() {
-                        toast.cancel();
+                        // it's safely in the outbox, and the service sends it
+                        // from here, so we're done
                         runOnUiThread(new Runnable() {
                             public void run() {
                                 Toast.makeText(ComposeActivity.this,
-                                           getString(R.string.send_success_toast),
-                                           Toast.LENGTH_SHORT).show();
+                                               getString(R.string.send_start_toast),
+                                               Toast.LENGTH_SHORT).show();
                             }
                         });
                         finish();
@@ -197,13 +218,11 @@ public class ComposeActivity extends TabActivity {
                     
                     public void onFailure() {
                         Log.w("ComposeActivity", "got failure");
-                        toast.cancel();
                         onSendFailure();
                     }
                     
                     public void onError(Exception e) {
                         Log.e("ComposeActivity", "got error", e);
-                        toast.cancel();
                         onSendFailure();
                     }
                 });
@@ -63,10 +63,22 @@ public class InstanceListActivity extends ZephyrgramSetActivity<ZephyrInstance>
     }
     
     @Override
-    protected void getItems(ZephyrBinder b,
+    protected String getSnapshotKey() {
+        return "instances/" + this.className;
+    }
+    
+    @Override
+    protected void getItems(ZephyrBinder b, int offset, int perpage,
                             ZephyrCallback<ZephyrInstance[]> callback) {
         
-        b.fetchInstances(this, this.className, callback);
+        b.fetchInstances(this, this.className, offset, perpage, callback);
+    }
+    
+    @Override
+    protected void getPriorityItems(ZephyrBinder b,
+                                    ZephyrCallback<ZephyrInstance[]> callback) {
+        
+        b.fetchUnreadInstances(this, this.className, 0, -1, callback);
     }
 
     @Override
@@ -0,0 +1,27 @@
+package com.benweissmann.zmobile;
+
+import com.benweissmann.zmobile.service.Metrics;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.TextView;
+
+/**
+ * Debug screen that shows the request metrics report (see Metrics). The
+ * report is refreshed each time the screen is shown.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public class MetricsActivity extends Activity {
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.metrics);
+    }
+    
+    @Override
+    public void onResume() {
+        super.onResume();
+        ((TextView) findViewById(R.id.metrics_report)).setText(Metrics.report());
+    }
+}
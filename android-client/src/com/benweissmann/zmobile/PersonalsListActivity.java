@@ -18,7 +18,6 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
-import android.widget.ListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 
 public class PersonalsListActivity extends ZephyrgramSetActivity<ZephyrPersonals> {
@@ -50,10 +49,24 @@ public class PersonalsListActivity extends ZephyrgramSetActivity<ZephyrPersonals
     }
     
     @Override
-    protected void getItems(ZephyrBinder b,
+    protected String getSnapshotKey() {
+        return "personals";
+    }
+    
+    @Override
+    protected void getItems(ZephyrBinder b, int offset, int perpage,
                             ZephyrCallback<ZephyrPersonals[]> callback) {
         
-        b.fetchPersonals(this, callback);
+        b.fetchPersonals(this, offset, perpage, callback);
+    }
+    
+    @Override
+    protected void getPriorityItems(ZephyrBinder b,
+                                    ZephyrCallback<ZephyrPersonals[]> callback) {
+        
+        // every unread personal is fetched up front, so the "All" count is
+        // right before the rest of the pages are loaded
+        b.fetchUnreadPersonals(this, 0, -1, callback);
     }
 
     @Override
@@ -72,15 +85,18 @@ public class PersonalsListActivity extends ZephyrgramSetActivity<ZephyrPersonals
     }
     
     @Override
-    protected void refreshHeaderViews(ListView listView, ArrayList<ZephyrPersonals> items) {
-        super.refreshHeaderViews(listView, items);
+    protected ArrayList<ZephyrPersonals> arrangeItems(List<ZephyrPersonals> items) {
+        ArrayList<ZephyrPersonals> arranged = new ArrayList<ZephyrPersonals>(items.size());
+        String username = AuthHelper.getUsername();
         
-        for(int i = 0; i < items.size(); i++) {
-            if(items.get(i).getName().equalsIgnoreCase(AuthHelper.getUsername())) {
-                items.remove(i);
-                return;
+        // leave out personals with ourself
+        for(ZephyrPersonals personals : items) {
+            if(!personals.getName().equalsIgnoreCase(username)) {
+                arranged.add(personals);
             }
         }
+        
+        return arranged;
     }
     
     @Override
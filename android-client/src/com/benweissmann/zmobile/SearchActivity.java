@@ -0,0 +1,126 @@
+package com.benweissmann.zmobile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.benweissmann.zmobile.components.ListHeader;
+import com.benweissmann.zmobile.components.ListHeader.Breadcrumb;
+import com.benweissmann.zmobile.listadapters.RenderedZephyrgram;
+import com.benweissmann.zmobile.listadapters.ZephyrgramListAdapter;
+import com.benweissmann.zmobile.service.SearchIndex;
+import com.benweissmann.zmobile.service.objects.IQuery;
+import com.benweissmann.zmobile.service.objects.Query;
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+import com.benweissmann.zmobile.util.QueryBuilder;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Searches the Zephyrgrams we've fetched, using the on-device SearchIndex,
+ * as the user types. Since nothing goes to zserv, this works offline.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public class SearchActivity extends Activity {
+    private static final int MAX_RESULTS = 100;
+    
+    private final List<RenderedZephyrgram> results = new ArrayList<RenderedZephyrgram>();
+    private ZephyrgramListAdapter adapter;
+    private SearchTask currentSearch = null;
+    
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.search);
+        
+        List<Breadcrumb> breadcrumbs = new ArrayList<Breadcrumb>();
+        breadcrumbs.add(new Breadcrumb(getString(R.string.search_label), null));
+        ListHeader.populate(this, breadcrumbs);
+        
+        this.adapter = new ZephyrgramListAdapter(this, this.results);
+        ListView listView = (ListView) findViewById(R.id.search_results);
+        listView.setAdapter(this.adapter);
+        listView.setOnItemClickListener(new OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view,
+                                    int position, long id) {
+                
+                goToZephyrgram(adapter.getItem(position).getZephyrgram());
+            }
+        });
+        
+        EditText searchText = (EditText) findViewById(R.id.search_text);
+        searchText.addTextChangedListener(new TextWatcher() {
+            public void afterTextChanged(Editable s) {
+                search(s.toString());
+            }
+            
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+        });
+    }
+    
+    // only the most recent search's results are shown
+    private void search(String search) {
+        if(this.currentSearch != null) {
+            this.currentSearch.cancel(false);
+        }
+        
+        this.currentSearch = new SearchTask();
+        this.currentSearch.execute(search);
+    }
+    
+    // opens the instance (or personals conversation) a result is from
+    private void goToZephyrgram(Zephyrgram z) {
+        IQuery query;
+        if(z.isPersonal()) {
+            query = QueryBuilder.personalQuery(z.isFromMe() ? z.getRawUser() : z.getRawSender());
+        }
+        else {
+            query = new Query().cls(z.getCls()).instance(z.getInstance());
+        }
+        
+        Intent intent = new Intent(this, ZephyrgramActivity.class);
+        intent.putExtra(ZephyrgramActivity.QUERY_EXTRA, query);
+        startActivityForResult(intent, 0);
+    }
+    
+    private class SearchTask extends AsyncTask<String, Void, List<RenderedZephyrgram>> {
+        @Override
+        protected List<RenderedZephyrgram> doInBackground(String... search) {
+            List<Zephyrgram> matches = SearchIndex.getInstance(SearchActivity.this)
+                                                  .search(search[0], MAX_RESULTS);
+            
+            List<RenderedZephyrgram> rendered = new ArrayList<RenderedZephyrgram>(matches.size());
+            for(Zephyrgram z : matches) {
+                rendered.add(RenderedZephyrgram.render(z));
+            }
+            return rendered;
+        }
+        
+        @Override
+        protected void onPostExecute(List<RenderedZephyrgram> rendered) {
+            if(this.isCancelled()) {
+                return;
+            }
+            
+            results.clear();
+            results.addAll(rendered);
+            adapter.notifyDataSetChanged();
+            
+            TextView emptyView = (TextView) findViewById(R.id.search_no_results);
+            emptyView.setVisibility(rendered.isEmpty() ? View.VISIBLE : View.GONE);
+        }
+    }
+}
@@ -6,11 +6,15 @@ import java.util.List;
 import com.benweissmann.zmobile.components.ListHeader;
 import com.benweissmann.zmobile.components.ListHeader.Breadcrumb;
 import com.benweissmann.zmobile.components.LoadFlipper;
+import com.benweissmann.zmobile.listadapters.RenderedPage;
+import com.benweissmann.zmobile.listadapters.RenderedZephyrgram;
 import com.benweissmann.zmobile.listadapters.ZephyrgramListAdapter;
+import com.benweissmann.zmobile.service.Snapshot;
 import com.benweissmann.zmobile.service.ZephyrService;
 import com.benweissmann.zmobile.service.ZephyrServiceBridge;
 import com.benweissmann.zmobile.service.ZephyrService.ZephyrBinder;
 import com.benweissmann.zmobile.service.callbacks.BinderCallback;
+import com.benweissmann.zmobile.service.callbacks.OutboxListener;
 import com.benweissmann.zmobile.service.callbacks.ZephyrCallback;
 import com.benweissmann.zmobile.service.callbacks.ZephyrStatusCallback;
 import com.benweissmann.zmobile.service.objects.IQuery;
@@ -20,11 +24,13 @@ import com.benweissmann.zmobile.service.objects.ZephyrgramResultSet;
 import com.benweissmann.zmobile.util.DomainStripper;
 import com.benweissmann.zmobile.util.QueryBuilder;
 import com.benweissmann.zmobile.util.URIs;
+import com.benweissmann.zmobile.util.ZephyrgramWindow;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.util.TypedValue;
@@ -49,10 +55,13 @@ public class ZephyrgramActivity extends Activity {
     public static final String QUERY_EXTRA = "zephyrgram_activity_query";
 
     private IQuery query = null;
-    private ZephyrgramResultSet startResultSet = null;
-    private ZephyrgramResultSet endResultSet = null;
     private boolean fetching = false;
-    private ArrayList<Zephyrgram> zephyrgrams = null;
+    
+    // whether the current fetch of the first page has failed, so a snapshot
+    // that loads afterwards mustn't show the loader or wait for it. Only
+    // used on the UI thread.
+    private boolean firstPageFailed = false;
+    private ZephyrgramWindow zephyrgrams = null;
     private ZephyrgramListAdapter adapter = null;
     
     private boolean autoloadNext = false;
@@ -60,8 +69,34 @@ public class ZephyrgramActivity extends Activity {
     
     private boolean atEnd = false;
     
+    // whether the last page in the window is the newest page of results
+    private boolean hasNewest = false;
+    
+    // zephyrgrams the user has sent that belong in this list but haven't
+    // been fetched from the server yet, oldest first. They're shown after the
+    // newest page.
+    private final List<Zephyrgram> unfetchedSent = new ArrayList<Zephyrgram>();
+    
+    // incremented by each showPending, so only the latest render is shown
+    private int pendingGeneration = 0;
+    
+    private ZephyrBinder outboxBinder = null;
+    private final OutboxListener outboxListener = new OutboxListener() {
+        public void onOutboxChanged() {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    showPending();
+                }
+            });
+        }
+    };
+    
     private static final int PREV_VIEW_HEIGHT_DP = 30;
     
+    // the most pages we keep in memory. Pages scrolled past this are evicted
+    // and re-fetched if the user scrolls back to them.
+    private static final int MAX_WINDOW_PAGES = 8;
+    
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -132,6 +167,40 @@ public class ZephyrgramActivity extends Activity {
         }
     }
     
+    @Override
+    public void onResume() {
+        super.onResume();
+        
+        ZephyrServiceBridge.getBinder(this, new BinderCallback() {
+            public void run(ZephyrBinder binder) {
+                outboxBinder = binder;
+                binder.addOutboxListener(outboxListener);
+                showPending();
+            }
+        });
+    }
+    
+    @Override
+    public void onPause() {
+        super.onPause();
+        
+        // so the next visit can start with what's on screen now
+        if(this.zephyrgrams != null && this.zephyrgrams.getLastPage() != null) {
+            Snapshot.getInstance(this).putPage(this.zephyrgrams.getLastPage());
+        }
+        
+        if(this.outboxBinder != null) {
+            this.outboxBinder.removeOutboxListener(this.outboxListener);
+            this.outboxBinder = null;
+        }
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        ZephyrServiceBridge.release(this);
+    }
+    
     @Override
     public void onRestart() {
         super.onRestart();
@@ -146,18 +215,20 @@ public class ZephyrgramActivity extends Activity {
             return;
         }
         this.fetching = true;
+        this.firstPageFailed = false;
         
-        LoadFlipper.flipToLoader(this);
+        // until the first page arrives, show the last page we saw of these
+        // results, if we have it
+        if(this.zephyrgrams == null) {
+            new SnapshotTask().execute(this.query);
+        }
 
         ZephyrServiceBridge.getBinder(this, new BinderCallback() {
             public void run(ZephyrBinder binder) {
                 binder.fetchZephyrgrams(ZephyrgramActivity.this, ZephyrgramActivity.this.query,
                         new ZephyrCallback<ZephyrgramResultSet>() {
                             public void run(final ZephyrgramResultSet result) {
-                                ZephyrgramActivity.this.startResultSet = result;
-                                ZephyrgramActivity.this.endResultSet = result;
-
-                                ZephyrgramActivity.this.initList(result);
+                                ZephyrgramActivity.this.initList(RenderedPage.render(result), false);
                             }
 
                             public void onError(Exception e) {
@@ -165,18 +236,65 @@ public class ZephyrgramActivity extends Activity {
                                         "got error callback in ZephyrgramActivity#getFirstPage",
                                         e);
                                 
-                                fetching = false;
-                                LoadFlipper.flipToError(ZephyrgramActivity.this);
+                                runOnUiThread(new Runnable() {
+                                    public void run() {
+                                        fetching = false;
+                                        firstPageFailed = true;
+                                        
+                                        // keep showing the snapshot if there is one
+                                        if(zephyrgrams == null) {
+                                            LoadFlipper.flipToError(ZephyrgramActivity.this);
+                                        }
+                                        else {
+                                            showFailToast();
+                                        }
+                                    }
+                                });
                             }
                         });
             }
         });
     }
     
-    private void initList(final ZephyrgramResultSet resultSet) {
+    // loads and renders the Snapshot's page for a query, and shows it unless
+    // the first page has already been shown. If the first page failed to
+    // load first, a snapshot is still shown in place of the error, but the
+    // loader isn't.
+    private class SnapshotTask extends AsyncTask<IQuery, Void, RenderedPage> {
+        @Override
+        protected RenderedPage doInBackground(IQuery... query) {
+            ZephyrgramResultSet snapshot = Snapshot.getInstance(ZephyrgramActivity.this).getPage(query[0]);
+            return (snapshot == null) ? null : RenderedPage.render(snapshot);
+        }
+        
+        @Override
+        protected void onPostExecute(RenderedPage page) {
+            if(zephyrgrams != null) {
+                return;
+            }
+            
+            if(page != null) {
+                initList(page, true);
+            }
+            else if(!firstPageFailed) {
+                LoadFlipper.flipToLoader(ZephyrgramActivity.this);
+            }
+        }
+    }
+    
+    // shows the first page. A page from the Snapshot is shown while the
+    // fresh first page loads, and is then replaced by it. Showing a snapshot
+    // leaves fetching as it is, since the fetch may still be in flight or
+    // may already have failed.
+    private void initList(final RenderedPage page, final boolean fromSnapshot) {
         this.runOnUiThread(new Runnable() {
             public void run() {
-                List<Zephyrgram> initialZephyrgrams = resultSet.getZephyrgrams();
+                if(zephyrgrams != null) {
+                    replaceSnapshot(page);
+                    return;
+                }
+                
+                List<Zephyrgram> initialZephyrgrams = page.getResultSet().getZephyrgrams();
                 
                 ListView listView = (ListView) findViewById(R.id.list_view);
                 registerForContextMenu(listView);
@@ -189,7 +307,8 @@ public class ZephyrgramActivity extends Activity {
                 // add prev page
                 listView.addHeaderView(vi.inflate(R.layout.prev_zephyrgrams_list_item, null, false));
                 
-                zephyrgrams = new ArrayList<Zephyrgram>(initialZephyrgrams);
+                zephyrgrams = new ZephyrgramWindow(MAX_WINDOW_PAGES);
+                zephyrgrams.appendPage(page);
                 
                 adapter = new ZephyrgramListAdapter(ZephyrgramActivity.this, zephyrgrams);
                 
@@ -202,11 +321,14 @@ public class ZephyrgramActivity extends Activity {
                     listView.setSelectionFromTop(adapter.getCount()+1, 0);
                 }
                 
-                if(initialZephyrgrams.size() < ZephyrService.ZEPHYRGRAMS_PER_PAGE) {
+                if(!fromSnapshot && initialZephyrgrams.size() < ZephyrService.ZEPHYRGRAMS_PER_PAGE) {
                     // we're underfull, so we must be at the end
                     atEnd = true;
+                    hasNewest = true;
                 }
                 
+                showPending();
+                
                 listView.setOnItemClickListener(new ListView.OnItemClickListener() {
                     public void onItemClick(AdapterView<?> parent, View view,
                             int position, long id) {
@@ -220,7 +342,7 @@ public class ZephyrgramActivity extends Activity {
                             getNextPage();
                         }
                         else {
-                            ZephyrgramActivity.this.replyTo(zephyrgrams.get(position-1));
+                            ZephyrgramActivity.this.replyTo(zephyrgrams.get(position-1).getZephyrgram());
                         }
                     }
                 });
@@ -258,14 +380,45 @@ public class ZephyrgramActivity extends Activity {
                     }
                 });
                 
-                markRead(resultSet);
+                // the snapshot may be out of date, so wait for the fresh page
+                // before marking anything read or fetching more pages
+                if(!fromSnapshot) {
+                    markRead(page.getResultSet());
+                }
                 
                 LoadFlipper.flipToContent(ZephyrgramActivity.this);
                 
-                ZephyrgramActivity.this.fetching = false;
+                if(!fromSnapshot) {
+                    ZephyrgramActivity.this.fetching = false;
+                }
             }
         });
     }
+    
+    // swaps the fresh first page in for the snapshot page. Called on the UI
+    // thread.
+    private void replaceSnapshot(RenderedPage page) {
+        List<Zephyrgram> initialZephyrgrams = page.getResultSet().getZephyrgrams();
+        ListView listView = (ListView) findViewById(R.id.list_view);
+        
+        this.zephyrgrams.clear();
+        this.zephyrgrams.appendPage(page);
+        this.adapter.notifyDataSetChanged();
+        
+        if(!initialZephyrgrams.isEmpty() && initialZephyrgrams.get(0).isRead()) {
+            listView.setSelectionFromTop(this.adapter.getCount()+1, 0);
+        }
+        else {
+            listView.setSelection(0);
+        }
+        
+        this.atEnd = this.hasNewest =
+            (initialZephyrgrams.size() < ZephyrService.ZEPHYRGRAMS_PER_PAGE);
+        
+        showPending();
+        markRead(page.getResultSet());
+        this.fetching = false;
+    }
 
     private void getNextPage() {
         if (this.fetching) {
@@ -285,10 +438,10 @@ public class ZephyrgramActivity extends Activity {
 
         ZephyrServiceBridge.getBinder(this, new BinderCallback() {
             public void run(ZephyrBinder binder) {
-                binder.fetchNextPage(ZephyrgramActivity.this, ZephyrgramActivity.this.endResultSet,
+                binder.fetchNextPage(ZephyrgramActivity.this, zephyrgrams.getLastPage(),
                         new ZephyrCallback<ZephyrgramResultSet>() {
                             public void run(final ZephyrgramResultSet result) {
-                                ZephyrgramActivity.this.appendAllToEnd(result);
+                                ZephyrgramActivity.this.appendAllToEnd(RenderedPage.render(result));
                             }
 
                             public void onError(Exception e) { 
@@ -322,10 +475,10 @@ public class ZephyrgramActivity extends Activity {
 
         ZephyrServiceBridge.getBinder(this, new BinderCallback() {
             public void run(ZephyrBinder binder) {
-                binder.fetchPrevPage(ZephyrgramActivity.this, ZephyrgramActivity.this.startResultSet,
+                binder.fetchPrevPage(ZephyrgramActivity.this, zephyrgrams.getFirstPage(),
                         new ZephyrCallback<ZephyrgramResultSet>() {
                             public void run(final ZephyrgramResultSet result) {
-                                ZephyrgramActivity.this.appendAllToStart(result);
+                                ZephyrgramActivity.this.appendAllToStart(RenderedPage.render(result));
                             }
 
                             public void onError(Exception e) {
@@ -341,13 +494,24 @@ public class ZephyrgramActivity extends Activity {
         });
     }
 
-    private void appendAllToEnd(final ZephyrgramResultSet resultSet) {
+    private void appendAllToEnd(final RenderedPage page) {
         this.runOnUiThread(new Runnable() {
             public void run() {
-                if(resultSet.getPageLength() > 0) {
-                    zephyrgrams.addAll(resultSet.getZephyrgrams());
+                if(page.size() > 0) {
+                    ListView list = (ListView) findViewById(R.id.list_view);
+                    int firstVisible = list.getFirstVisiblePosition();
+                    View firstVisibleView = list.getChildAt(0);
+                    
+                    int evicted = zephyrgrams.appendPage(page);
                     adapter.notifyDataSetChanged();
-                    endResultSet = resultSet;
+                    
+                    if(evicted > 0) {
+                        // rows were removed above the viewport, so shift the
+                        // selection up to keep the same rows on screen
+                        int top = (firstVisibleView == null) ? 0 : firstVisibleView.getTop();
+                        list.setSelectionFromTop(Math.max(firstVisible - evicted, 0), top);
+                    }
+                    
                     atEnd = false;
                 }
                 else {
@@ -361,7 +525,12 @@ public class ZephyrgramActivity extends Activity {
                     atEnd = true;
                 }
                 
-                markRead(resultSet);
+                // anything we sent that's been stored is on this page now
+                hasNewest = page.size() < ZephyrService.ZEPHYRGRAMS_PER_PAGE;
+                unfetchedSent.clear();
+                showPending();
+                
+                markRead(page.getResultSet());
                 
                 ZephyrgramActivity.this.fetching = false;
                 
@@ -375,15 +544,22 @@ public class ZephyrgramActivity extends Activity {
 
     }
 
-    private void appendAllToStart(final ZephyrgramResultSet resultSet) {
+    private void appendAllToStart(final RenderedPage page) {
         this.runOnUiThread(new Runnable() {
             public void run() {
-                if(resultSet.getPageLength() > 0) {
-                    zephyrgrams.addAll(0, resultSet.getZephyrgrams());
+                if(page.size() > 0) {
+                    int evicted = zephyrgrams.prependPage(page);
                     adapter.notifyDataSetChanged();
                     ListView list = (ListView) findViewById(R.id.list_view);
-                    list.setSelectionFromTop(resultSet.getZephyrgrams().size() + 1, getPrevViewHeight());
-                    startResultSet = resultSet;
+                    list.setSelectionFromTop(page.size() + 1, getPrevViewHeight());
+                    
+                    if(evicted > 0) {
+                        // the newest page was dropped, so we're no longer at
+                        // the end; it'll be re-fetched when scrolled to.
+                        atEnd = false;
+                        hasNewest = false;
+                        showPending();
+                    }
                 }
                 else {
                     CharSequence text = getString(R.string.no_prev_zephyrgrams);
@@ -393,7 +569,7 @@ public class ZephyrgramActivity extends Activity {
                     toast.show();
                 }
                 
-                markRead(resultSet);
+                markRead(page.getResultSet());
                 
                 ZephyrgramActivity.this.fetching = false;
                 
@@ -407,6 +583,58 @@ public class ZephyrgramActivity extends Activity {
 
     }
     
+    // shows the zephyrgrams we've sent after the newest page, if it's loaded.
+    // Sent zephyrgrams stay until a page is fetched, so they don't blink out
+    // between leaving the outbox and reaching the server's store.
+    private void showPending() {
+        if(this.outboxBinder == null || this.zephyrgrams == null) {
+            return;
+        }
+        
+        for(Zephyrgram z : this.outboxBinder.getPendingZephyrgrams(this.query)) {
+            if(!this.unfetchedSent.contains(z)) {
+                this.unfetchedSent.add(z);
+            }
+        }
+        
+        List<Zephyrgram> pending = new ArrayList<Zephyrgram>();
+        if(this.hasNewest) {
+            pending.addAll(this.unfetchedSent);
+        }
+        
+        this.pendingGeneration++;
+        new PendingTask(this.pendingGeneration).execute(pending);
+    }
+    
+    // renders the pending zephyrgrams and shows them, unless showPending has
+    // been called again since
+    private class PendingTask extends AsyncTask<List<Zephyrgram>, Void, List<RenderedZephyrgram>> {
+        private final int generation;
+        
+        public PendingTask(int generation) {
+            this.generation = generation;
+        }
+        
+        @Override
+        protected List<RenderedZephyrgram> doInBackground(List<Zephyrgram>... pending) {
+            List<RenderedZephyrgram> rendered = new ArrayList<RenderedZephyrgram>(pending[0].size());
+            for(Zephyrgram z : pending[0]) {
+                rendered.add(RenderedZephyrgram.render(z));
+            }
+            return rendered;
+        }
+        
+        @Override
+        protected void onPostExecute(List<RenderedZephyrgram> rendered) {
+            if(this.generation != pendingGeneration || zephyrgrams == null) {
+                return;
+            }
+            
+            zephyrgrams.setPending(rendered);
+            adapter.notifyDataSetChanged();
+        }
+    }
+    
     private void markRead(final ZephyrgramResultSet resultSet) {
         ZephyrServiceBridge.getBinder(this, new BinderCallback() {
             public void run(ZephyrBinder binder) {
@@ -543,7 +771,8 @@ public class ZephyrgramActivity extends Activity {
             Log.w("ZephyrgramActivity", "Got onCreateContextMenu for a header/footer. This shouldn't happen");
         }
         else {
-            Zephyrgram z = this.adapter.getItem(info.position - 1);
+            RenderedZephyrgram rendered = this.adapter.getItem(info.position - 1);
+            Zephyrgram z = rendered.getZephyrgram();
             if(z.isPersonal()) {
                 inflater.inflate(R.menu.zephyrgram_list_personal_context_menu, menu);
             }
@@ -551,7 +780,7 @@ public class ZephyrgramActivity extends Activity {
                 inflater.inflate(R.menu.zephyrgram_list_context_menu, menu);   
             }
             
-            for(String uri : URIs.extractUrls(z.getBody())) {
+            for(String uri : rendered.getUrls()) {
                 menu.add("Visit " + uri).setIntent(URIs.intentFor(uri));
             }
         }
@@ -560,7 +789,7 @@ public class ZephyrgramActivity extends Activity {
     @Override
     public boolean onContextItemSelected(MenuItem item) {
         AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-        Zephyrgram z = this.adapter.getItem(info.position - 1);
+        Zephyrgram z = this.adapter.getItem(info.position - 1).getZephyrgram();
         
         switch(item.getItemId()) {
         case R.id.zephyrgram_list_reply_class:
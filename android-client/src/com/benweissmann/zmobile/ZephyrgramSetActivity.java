@@ -1,13 +1,13 @@
 package com.benweissmann.zmobile;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import com.benweissmann.zmobile.components.ListHeader;
 import com.benweissmann.zmobile.components.LoadFlipper;
 import com.benweissmann.zmobile.listadapters.ZephyrgramSetListAdapter;
+import com.benweissmann.zmobile.service.Snapshot;
 import com.benweissmann.zmobile.service.ZephyrServiceBridge;
 import com.benweissmann.zmobile.service.ZephyrService.ZephyrBinder;
 import com.benweissmann.zmobile.service.callbacks.BinderCallback;
@@ -15,15 +15,20 @@ import com.benweissmann.zmobile.service.callbacks.ZephyrCallback;
 import com.benweissmann.zmobile.service.callbacks.ZephyrStatusCallback;
 import com.benweissmann.zmobile.service.objects.IQuery;
 import com.benweissmann.zmobile.service.objects.ZephyrgramSet;
+import com.benweissmann.zmobile.util.ListDiff;
+import com.benweissmann.zmobile.util.Tracer;
+import com.benweissmann.zmobile.util.ZephyrgramSetPages;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -33,15 +38,24 @@ import android.widget.AdapterView.OnItemClickListener;
 public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Activity {
     private View allListItem;
     private ZephyrgramSetListAdapter<T> currentListAdapter = null;
+    private final ArrayList<T> currentItems = new ArrayList<T>();
+    private ZephyrgramSetPages<T> pages = null;
+    private boolean snapshotRequested = false;
     private Date currentTime = new Date();
     private static final int REFRESH_TIME = 5000;
     
+    /**
+     * The number of ZephyrgramSets fetched per page
+     */
+    protected static final int PAGE_SIZE = 50;
+    
     /**
      * Called when this activity is created. If you need to do extra setup,
      * override setup().
      */
     @Override
     public final void onCreate(Bundle savedInstanceState) {
+        Tracer.Span span = Tracer.begin(this.getClass().getSimpleName() + ".onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.list);
         
@@ -56,6 +70,7 @@ public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Act
         });
 
         update();
+        span.end();
     }
     
     @Override
@@ -66,6 +81,12 @@ public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Act
         }
     }
     
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        ZephyrServiceBridge.release(this);
+    }
+    
     /**
      * Called by onCreate. By default, does nothing, but can be override
      * to do subclass-specific onCreate actions, like unpacking extras.
@@ -73,12 +94,39 @@ public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Act
     protected void setup() {}
     
     /**
-     * Asynchronous method to fetch the ZephyrgramSets for this list.
+     * Asynchronous method to fetch a page of the ZephyrgramSets for this
+     * list. Pages are fetched as the user scrolls.
+     * @param b        The binder for the ZephyrService
+     * @param offset   The number of ZephyrgramSets to skip
+     * @param perpage  The maximum number of ZephyrgramSets to fetch
+     * @param callback A ZephyrCallback that needs to be called with the
+     *                 ZephyrgramSets for this page.
+     */
+    protected abstract void getItems(ZephyrBinder b, int offset, int perpage,
+                                     ZephyrCallback<T[]> callback);
+    
+    /**
+     * Asynchronous method to fetch the ZephyrgramSets that should be shown
+     * before any pages are fetched, e.g. every item with unread messages.
+     * These are fetched once per refresh, in a single request, so there
+     * should be few of them. This implementation fetches nothing, and calls
+     * the callback with null.
      * @param b        The binder for the ZephyrService
      * @param callback A ZephyrCallback that needs to be called with the
-     *                 ZephyrgramSets for this list.   
+     *                 priority ZephyrgramSets, or null if there are none.
+     */
+    protected void getPriorityItems(ZephyrBinder b, ZephyrCallback<T[]> callback) {
+        callback.run(null);
+    }
+    
+    /**
+     * Returns the key this list is stored under in the Snapshot, so it can
+     * be shown immediately the next time it's created, or null to not
+     * snapshot this list. This implementation returns null.
      */
-    protected abstract void getItems(ZephyrBinder b, ZephyrCallback<T[]> callback);
+    protected String getSnapshotKey() {
+        return null;
+    }
     
     /**
      * Called when the user selects the "All" item for this list.
@@ -149,18 +197,16 @@ public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Act
     }
     
     /**
-     * Adds header views to the list. This implementation adds an "all" item
-     * with an unread count equal to the sum of item.getUnreadCount()
-     * for item in items.
+     * Refreshes header views. This implementation sets the unread count of
+     * the "all" item to the sum of item.getUnreadCount() for item in items.
      * 
-     * This method is called BEFORE the items array is passed to the listadapter,
-     * so you can safely modify the items list, e.g. to remove the
-     * "message" class.
+     * This method is called on the UI thread, with every item fetched so
+     * far, including any that arrangeItems leaves out of the list.
      * 
      * @param listView
      * @param items
      */
-    protected void refreshHeaderViews(ListView listView, ArrayList<T> items) {
+    protected void refreshHeaderViews(ListView listView, List<T> items) {
         int unreadCount = 0;
         
         for(T item : items) {
@@ -177,9 +223,26 @@ public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Act
         }
     }
 
+    /**
+     * Picks out the items to show in the list, in the order they should be
+     * shown. Called every time items are fetched, on the thread the items
+     * were fetched on rather than the UI thread, so it must not touch any
+     * views. This implementation shows every item, priority items first,
+     * then the rest in the order the server returned them.
+     * @param items Every item fetched so far
+     * @return The items to show
+     */
+    protected ArrayList<T> arrangeItems(List<T> items) {
+        return new ArrayList<T>(items);
+    }
+
     /**
      * Returns a list adapter for this activity. This can be overridden to
      * return a subclass of ZephyrgramSetListAdapter.
+     * 
+     * This is called once, the first time items are fetched. On later
+     * refreshes, the adapter's items are updated in place, so the returned
+     * adapter must be backed by the given list.
      * @param items The items to populate the adapter with.
      */
     protected ZephyrgramSetListAdapter<T> getListAdapter(ArrayList<T> items) {
@@ -195,16 +258,66 @@ public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Act
 
     /**
      * Fetches a fresh list of ZephyrgramSets and displays them.
+     * 
+     * The first time the list is loaded, the list from the last run is shown
+     * from the Snapshot if there is one, and refreshed like any other list.
+     * Otherwise, the priority items are shown as soon as they arrive, and the
+     * first page is only fetched once they've been drawn. On a refresh, as
+     * many pages as were already loaded are re-fetched in one request, and
+     * the list is updated once everything has arrived, so it doesn't shrink
+     * and then regrow.
+     * 
+     * This can be called from any thread (e.g. from a binder callback); the
+     * update is started on the UI thread.
      */
     protected void update() {
-        LoadFlipper.flipToLoader(this);
+        this.runOnUiThread(new Runnable() {
+            public void run() {
+                startUpdate();
+            }
+        });
+    }
+    
+    // does the work of update(), on the UI thread
+    private void startUpdate() {
+        // once the list is showing, leave it up while refreshing, so rows
+        // whose counts didn't change aren't redrawn
+        if(this.currentListAdapter == null) {
+            LoadFlipper.flipToLoader(this);
+            
+            String key = this.getSnapshotKey();
+            if(key != null && !this.snapshotRequested) {
+                this.snapshotRequested = true;
+                new SnapshotTask().execute(key);
+            }
+        }
         this.currentTime = new Date();
         
+        final ZephyrgramSetPages<T> previous = this.pages;
+        final boolean refreshing = (this.currentListAdapter != null);
+        final int perpage = (previous != null) ? Math.max(previous.getNextOffset(), PAGE_SIZE)
+                                               : PAGE_SIZE;
+        
+        // loads for the previous pages are ignored once these replace them
+        final ZephyrgramSetPages<T> pages = new ZephyrgramSetPages<T>();
+        pages.startLoading();
+        this.pages = pages;
+        
         ZephyrServiceBridge.getBinder(this, new BinderCallback() {
-            public void run(ZephyrBinder binder) {
-                getItems(binder, new ZephyrCallback<T[]>() {
-                    public void run(final T[] itemArray) {
-                        updateItems(itemArray);
+            public void run(final ZephyrBinder binder) {
+                getPriorityItems(binder, new ZephyrCallback<T[]>() {
+                    public void run(T[] priorityItems) {
+                        pages.addItems(priorityItems);
+                        
+                        if(!refreshing && priorityItems != null && priorityItems.length > 0) {
+                            // show the priority items right away, and only
+                            // start on the first page once they're drawn
+                            pages.stopLoading();
+                            updateItems(pages, true);
+                        }
+                        else {
+                            fetchPage(binder, pages, perpage, previous);
+                        }
                     }
 
                     public void onError(Exception e) {
@@ -212,36 +325,241 @@ public abstract class ZephyrgramSetActivity<T extends ZephyrgramSet> extends Act
                               "got error callback in ZephyrgramSetActivity#update",
                               e);
                         
-                        showError();
+                        pages.stopLoading();
+                        onFetchError(pages, previous);
                     }
                 });
             }
         });
     }
+    
+    // loads and arranges the list stored in the snapshot under a key, and
+    // shows it unless fetched items have already been shown
+    private class SnapshotTask extends AsyncTask<String, Void, ArrayList<T>> {
+        private List<T> stored = null;
+        
+        @Override
+        protected ArrayList<T> doInBackground(String... key) {
+            // the key determines the type of the stored items
+            @SuppressWarnings("unchecked")
+            List<T> stored = (List<T>) Snapshot.getInstance(ZephyrgramSetActivity.this).getSets(key[0]);
+            if(stored == null) {
+                return null;
+            }
+            
+            this.stored = stored;
+            return arrangeItems(stored);
+        }
+        
+        @Override
+        protected void onPostExecute(ArrayList<T> items) {
+            if(items == null || currentListAdapter != null) {
+                return;
+            }
+            
+            ListView listView = (ListView) findViewById(R.id.list_view);
+            refreshHeaderViews(listView, this.stored);
+            showItems(listView, items);
+            LoadFlipper.flipToContent(ZephyrgramSetActivity.this);
+        }
+    }
+    
+    /**
+     * Fetches the next page of ZephyrgramSets, if there is one and it isn't
+     * already being fetched. Called as the user scrolls towards the end of
+     * the list.
+     */
+    protected void fetchNextPage() {
+        final ZephyrgramSetPages<T> pages = this.pages;
+        if(pages == null || !pages.startLoading()) {
+            return;
+        }
+        
+        ZephyrServiceBridge.getBinder(this, new BinderCallback() {
+            public void run(ZephyrBinder binder) {
+                fetchPage(binder, pages, PAGE_SIZE, null);
+            }
+        });
+    }
+    
+    // pages must already be marked as loading. If the fetch fails, the
+    // fallback pages (if any) go back to being the current pages.
+    private void fetchPage(ZephyrBinder binder, final ZephyrgramSetPages<T> pages,
+                           final int perpage, final ZephyrgramSetPages<T> fallback) {
+        
+        final Tracer.Span span = Tracer.begin(this.getClass().getSimpleName() + ".getItems");
+        getItems(binder, pages.getNextOffset(), perpage, new ZephyrCallback<T[]>() {
+            public void run(T[] page) {
+                span.end();
+                pages.addPage(page, perpage);
+                updateItems(pages, false);
+            }
+
+            public void onError(Exception e) {
+                span.end();
+                Log.e("ZephyrgramSetActivity",
+                      "got error callback in ZephyrgramSetActivity#fetchPage",
+                      e);
+                
+                pages.stopLoading();
+                onFetchError(pages, fallback);
+            }
+        });
+    }
+    
+    private void onFetchError(final ZephyrgramSetPages<T> pages,
+                              final ZephyrgramSetPages<T> fallback) {
+        
+        this.runOnUiThread(new Runnable() {
+            public void run() {
+                if(pages != ZephyrgramSetActivity.this.pages) {
+                    return;
+                }
+                
+                // a failed refresh leaves the list as it was, so keep
+                // paging from where the list was
+                if(fallback != null) {
+                    ZephyrgramSetActivity.this.pages = fallback;
+                }
+                
+                // keep showing what we have if we can
+                if(currentListAdapter == null) {
+                    showError();
+                }
+                else {
+                    showFailToast();
+                }
+            }
+        });
+    }
 
-    private void updateItems(final T[] itemArray) {
+    // if fetchNextPage is true, the next page is fetched after the list has
+    // been updated and drawn
+    private void updateItems(final ZephyrgramSetPages<T> pages,
+                             final boolean fetchNextPage) {
+        Tracer.Span span = Tracer.begin("updateItems");
+        final List<T> fetched = pages.getItems();
+        
+        // arranging is linear in the number of items, which can be in the
+        // thousands, so keep it off the UI thread
+        final ArrayList<T> items = arrangeItems(fetched);
+        
+        String snapshotKey = this.getSnapshotKey();
+        if(snapshotKey != null) {
+            Snapshot.getInstance(this).putSets(snapshotKey, fetched);
+        }
+        span.end();
+        
         this.runOnUiThread(new Runnable() {
             public void run() {
+                // a refresh started since these were fetched
+                if(pages != ZephyrgramSetActivity.this.pages) {
+                    return;
+                }
+                
+                Tracer.Span span = Tracer.begin("updateItems (UI)");
                 ListView listView = (ListView) findViewById(R.id.list_view);
-                registerForContextMenu(listView);
-                ArrayList<T> items = new ArrayList<T>(Arrays.asList(itemArray));
                 
-                refreshHeaderViews(listView, items);
-                final ZephyrgramSetListAdapter<T> listAdapter = getListAdapter(items);
-                currentListAdapter = listAdapter;
-                listView.setAdapter(listAdapter);
+                refreshHeaderViews(listView, fetched);
                 
-                listView.setOnItemClickListener(new OnItemClickListener() {
-                    public void onItemClick(AdapterView<?> parent, View view,
-                            int position, long id) {
-                        
-                        dispatchClick(position, listAdapter);
+                if(currentListAdapter == null) {
+                    showItems(listView, items);
+                }
+                else {
+                    int[] changed = ListDiff.changedPositions(currentItems, items);
+                    
+                    if(changed == null) {
+                        replaceItems(listView, items);
                     }
-                });
+                    else {
+                        updateRows(listView, items, changed);
+                    }
+                }
                 
                 LoadFlipper.flipToContent(ZephyrgramSetActivity.this);
+                span.end();
+                
+                if(fetchNextPage) {
+                    // runs after the layout and draw that the update queued
+                    listView.post(new Runnable() {
+                        public void run() {
+                            fetchNextPage();
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    // sets up the adapter the first time items are fetched
+    private void showItems(ListView listView, ArrayList<T> items) {
+        registerForContextMenu(listView);
+        
+        this.currentItems.addAll(items);
+        this.currentListAdapter = getListAdapter(this.currentItems);
+        listView.setAdapter(this.currentListAdapter);
+        
+        listView.setOnItemClickListener(new OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view,
+                    int position, long id) {
+                
+                dispatchClick(position, currentListAdapter);
             }
         });
+        
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                                 int visibleItemCount, int totalItemCount) {
+                
+                // start fetching the next page half a page before the end
+                if(firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+                    fetchNextPage();
+                }
+            }
+            
+            public void onScrollStateChanged(AbsListView view, int scrollState) {}
+        });
+    }
+    
+    // items were added, removed or moved: redraw the list, but keep the
+    // first visible item where it was on the screen
+    private void replaceItems(ListView listView, ArrayList<T> items) {
+        int headerCount = listView.getHeaderViewsCount();
+        int firstPosition = listView.getFirstVisiblePosition() - headerCount;
+        View firstView = listView.getChildAt(0);
+        int top = (firstView == null) ? 0 : firstView.getTop();
+        
+        String anchorName = null;
+        if(firstPosition >= 0 && firstPosition < this.currentItems.size()) {
+            anchorName = this.currentItems.get(firstPosition).getName();
+        }
+        
+        this.currentItems.clear();
+        this.currentItems.addAll(items);
+        this.currentListAdapter.notifyDataSetChanged();
+        
+        if(anchorName != null) {
+            int anchorPosition = ListDiff.indexOfName(this.currentItems, anchorName);
+            if(anchorPosition >= 0) {
+                listView.setSelectionFromTop(anchorPosition + headerCount, top);
+            }
+        }
+    }
+    
+    // only the given positions changed: swap in their new items and rebind
+    // the rows that are on screen in place. Rows that aren't on screen will
+    // be bound to the new items when they're scrolled to.
+    private void updateRows(ListView listView, ArrayList<T> items, int[] changed) {
+        int firstChild = listView.getFirstVisiblePosition() - listView.getHeaderViewsCount();
+        
+        for(int position : changed) {
+            this.currentItems.set(position, items.get(position));
+            
+            int childIndex = position - firstChild;
+            if(childIndex >= 0 && childIndex < listView.getChildCount()) {
+                this.currentListAdapter.bindRow(listView.getChildAt(childIndex), position);
+            }
+        }
     }
     
     protected void markRead(final IQuery iQuery) {
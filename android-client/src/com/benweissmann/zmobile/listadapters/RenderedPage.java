@@ -0,0 +1,49 @@
+package com.benweissmann.zmobile.listadapters;
+
+import com.benweissmann.zmobile.service.objects.ZephyrgramResultSet;
+
+/**
+ * Immutable page of RenderedZephyrgrams, along with the ZephyrgramResultSet
+ * they were rendered from.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class RenderedPage {
+    private final ZephyrgramResultSet resultSet;
+    private final RenderedZephyrgram[] zephyrgrams;
+    
+    private RenderedPage(ZephyrgramResultSet resultSet,
+                         RenderedZephyrgram[] zephyrgrams) {
+        this.resultSet = resultSet;
+        this.zephyrgrams = zephyrgrams;
+    }
+    
+    /**
+     * Renders every Zephyrgram in the given result set. Don't call this on
+     * the UI thread.
+     */
+    public static RenderedPage render(ZephyrgramResultSet resultSet) {
+        RenderedZephyrgram[] zephyrgrams = new RenderedZephyrgram[resultSet.getPageLength()];
+        
+        for(int i = 0; i < zephyrgrams.length; i++) {
+            zephyrgrams[i] = RenderedZephyrgram.render(resultSet.get(i));
+        }
+        
+        return new RenderedPage(resultSet, zephyrgrams);
+    }
+    
+    public ZephyrgramResultSet getResultSet() {
+        return resultSet;
+    }
+    
+    /**
+     * Returns the number of zephyrgrams on this page
+     */
+    public int size() {
+        return zephyrgrams.length;
+    }
+    
+    public RenderedZephyrgram get(int i) {
+        return zephyrgrams[i];
+    }
+}
@@ -0,0 +1,127 @@
+package com.benweissmann.zmobile.listadapters;
+
+import java.util.List;
+
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+import com.benweissmann.zmobile.util.URIs;
+
+/**
+ * Immutable, ready-to-display form of a Zephyrgram. Everything the list
+ * needs to bind a row -- display strings, which header layout to use, and the
+ * linkified body -- is computed once by render(), which should be called off
+ * the UI thread when a page arrives. Binding a row then only reads fields,
+ * except for the time: its label ("Yesterday", a weekday...) depends on
+ * when it's shown, so it's formatted when the row is bound, from the
+ * TimeFormatter's cache.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class RenderedZephyrgram {
+    private final Zephyrgram zephyrgram;
+    private final boolean personal;
+    private final boolean fromMe;
+    private final String cls;
+    private final String instance;
+    private final String sender;
+    private final long timestamp;
+    private final CharSequence body;
+    private final List<String> urls;
+    
+    private RenderedZephyrgram(Zephyrgram zephyrgram, boolean personal,
+                               boolean fromMe, String cls, String instance,
+                               String sender, long timestamp, CharSequence body,
+                               List<String> urls) {
+        this.zephyrgram = zephyrgram;
+        this.personal = personal;
+        this.fromMe = fromMe;
+        this.cls = cls;
+        this.instance = instance;
+        this.sender = sender;
+        this.timestamp = timestamp;
+        this.body = body;
+        this.urls = urls;
+    }
+    
+    /**
+     * Computes the render model for the given Zephyrgram. This strips domains,
+     * formats the timestamp and scans the body for links, so don't call it on
+     * the UI thread.
+     */
+    public static RenderedZephyrgram render(Zephyrgram z) {
+        boolean personal = z.isPersonal();
+        boolean fromMe = z.isFromMe();
+        String sender;
+        
+        if(personal && fromMe) {
+            // personal headers show the other party
+            sender = z.getUser();
+        }
+        else {
+            sender = z.getSender();
+        }
+        
+        String body = z.getBody();
+        int[] urlSpans = URIs.findUrls(body);
+        
+        return new RenderedZephyrgram(z, personal, fromMe, z.getCls(),
+                                      z.getInstance(), sender, z.getTimeMillis(),
+                                      URIs.linkify(body, urlSpans),
+                                      URIs.urlsAt(body, urlSpans));
+    }
+    
+    /**
+     * Returns the Zephyrgram this was rendered from
+     */
+    public Zephyrgram getZephyrgram() {
+        return zephyrgram;
+    }
+    
+    /**
+     * Returns true iff this should be displayed with the personal header
+     * instead of the class/instance/sender triplet
+     */
+    public boolean isPersonal() {
+        return personal;
+    }
+    
+    public boolean isFromMe() {
+        return fromMe;
+    }
+    
+    public String getCls() {
+        return cls;
+    }
+    
+    public String getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Returns the stripped sender, or for personals sent by the current user,
+     * the stripped recipient.
+     */
+    public String getSender() {
+        return sender;
+    }
+    
+    /**
+     * Returns the time this zephyr was sent, in milliseconds since the epoch
+     */
+    public long getTimeMillis() {
+        return timestamp;
+    }
+    
+    /**
+     * Returns the body with URLs marked up as links
+     */
+    public CharSequence getBody() {
+        return body;
+    }
+    
+    /**
+     * Returns the URLs in the body, in order
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+}
@@ -0,0 +1,97 @@
+package com.benweissmann.zmobile.listadapters;
+
+import android.content.Context;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+
+/**
+ * Caches the child views of an inflated list row, so adapters call
+ * findViewById at most once per child per row instead of on every getView.
+ * 
+ * A ViewHolder is stored as its row's tag, and remembers the layout the row
+ * was inflated from, so a recycled row is only reused for that layout. (Keyed
+ * tags aren't used: before API 14 they're kept in a static map that never
+ * lets rows be collected.)
+ * 
+ * Usage, in getView:
+ * 
+ * ViewHolder holder = ViewHolder.obtain(getContext(), R.layout.foo, convertView);
+ * TextView label = holder.get(R.id.foo_label);
+ * ...
+ * return holder.getRow();
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class ViewHolder {
+    private final View row;
+    private final int layoutId;
+    private final SparseArray<View> views = new SparseArray<View>();
+    
+    private ViewHolder(View row, int layoutId) {
+        this.row = row;
+        this.layoutId = layoutId;
+    }
+    
+    /**
+     * Returns the ViewHolder for convertView if it was inflated from the
+     * given layout, or inflates a new row and returns its ViewHolder.
+     * @param context     Context used to inflate a new row if needed
+     * @param layoutId    The layout resource for the row
+     * @param convertView The view passed to getView. May be null.
+     */
+    public static ViewHolder obtain(Context context, int layoutId, View convertView) {
+        if(convertView != null) {
+            ViewHolder holder = forLayout(convertView, layoutId);
+            if(holder != null) {
+                return holder;
+            }
+        }
+        
+        LayoutInflater vi = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        return get(vi.inflate(layoutId, null), layoutId);
+    }
+    
+    /**
+     * Returns the ViewHolder for a row inflated from the given layout,
+     * attaching a new one if the row doesn't have one yet.
+     */
+    public static ViewHolder get(View row, int layoutId) {
+        ViewHolder holder = forLayout(row, layoutId);
+        if(holder == null) {
+            holder = new ViewHolder(row, layoutId);
+            row.setTag(holder);
+        }
+        return holder;
+    }
+    
+    // returns the row's ViewHolder if it has one for the given layout
+    private static ViewHolder forLayout(View row, int layoutId) {
+        Object tag = row.getTag();
+        if(tag instanceof ViewHolder && ((ViewHolder) tag).layoutId == layoutId) {
+            return (ViewHolder) tag;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the row this ViewHolder caches views for
+     */
+    public View getRow() {
+        return row;
+    }
+    
+    /**
+     * Returns the child of the row with the given ID, looking it up only the
+     * first time it's requested.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends View> T get(int id) {
+        View v = views.get(id);
+        if(v == null) {
+            v = row.findViewById(id);
+            views.put(id, v);
+        }
+        return (T) v;
+    }
+}
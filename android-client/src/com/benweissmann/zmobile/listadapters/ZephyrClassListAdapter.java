@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.Set;
 
 import android.view.View;
-import android.view.ViewGroup;
 
 import com.benweissmann.zmobile.ClassListActivity;
 import com.benweissmann.zmobile.R;
@@ -16,20 +15,19 @@ public class ZephyrClassListAdapter extends ZephyrgramSetListAdapter<ZephyrClass
     }
     
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        View v = super.getView(position, convertView, parent);
+    protected void bind(ViewHolder holder, ZephyrClass cls) {
+        super.bind(holder, cls);
         
-        ZephyrClass cls = this.getItem(position);
+        View starOff = holder.get(R.id.class_star_off);
+        View starOn = holder.get(R.id.class_star_on);
         
         if(cls.isStarred()) {
-            v.findViewById(R.id.class_star_off).setVisibility(View.GONE);
-            v.findViewById(R.id.class_star_on).setVisibility(View.VISIBLE);
+            starOff.setVisibility(View.GONE);
+            starOn.setVisibility(View.VISIBLE);
         }
         else {
-            v.findViewById(R.id.class_star_on).setVisibility(View.GONE);
-            v.findViewById(R.id.class_star_off).setVisibility(View.VISIBLE);
+            starOn.setVisibility(View.GONE);
+            starOff.setVisibility(View.VISIBLE);
         }
-        
-        return v;
     }
 }
@@ -6,7 +6,6 @@ import com.benweissmann.zmobile.R;
 import com.benweissmann.zmobile.service.objects.ZephyrgramSet;
 
 import android.content.Context;
-import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
@@ -29,30 +28,38 @@ public class ZephyrgramSetListAdapter<T extends ZephyrgramSet> extends ArrayAdap
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        T item = items.get(position);
+        ViewHolder holder = ViewHolder.obtain(this.getContext(), this.layoutId, convertView);
+        this.bind(holder, items.get(position));
+        return holder.getRow();
+    }
+    
+    /**
+     * Rebinds a row this adapter made to the item now at the given position,
+     * e.g. when only that item has changed, without going through getView.
+     */
+    public void bindRow(View row, int position) {
+        this.bind(ViewHolder.get(row, this.layoutId), items.get(position));
+    }
+    
+    /**
+     * Shows an item in a row. Subclasses that show more should call through
+     * to this.
+     */
+    protected void bind(ViewHolder holder, T item) {
         String label = item.getName();
         int unreadCount = item.getUnreadCount();
         
-        View v = convertView;
-        if (v == null) {
-            LayoutInflater vi = (LayoutInflater) this.getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            v = vi.inflate(this.layoutId, null);
-        }
-        
-        TextView labelView = (TextView) v.findViewById(R.id.item_label);
+        TextView labelView = holder.get(R.id.item_label);
         labelView.setText(label);
 
+        LinearLayout unreadCountWrapper = holder.get(R.id.item_unread_count_wrapper);
         if(unreadCount > 0) {
-            TextView unreadCountView = (TextView) v.findViewById(R.id.item_unread_count);
-            LinearLayout unreadCountWrapper = (LinearLayout) v.findViewById(R.id.item_unread_count_wrapper);
+            TextView unreadCountView = holder.get(R.id.item_unread_count);
             unreadCountView.setText(String.valueOf(unreadCount));
             unreadCountWrapper.setVisibility(View.VISIBLE);
         }
         else {
-            LinearLayout unreadCountWrapper = (LinearLayout) v.findViewById(R.id.item_unread_count_wrapper);
             unreadCountWrapper.setVisibility(View.INVISIBLE);
         }
-        
-        return v;
     }
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package com.benweissmann.zmobile.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * The decode stage between zserv's responses and the ZephyrCallbacks that
+ * receive them. Responses are decoded into immutable model objects, and the
+ * callbacks are run, on a small, bounded pool of background-priority
+ * threads, instead of on aXMLRPC's threads, which run at the same priority
+ * as the UI thread.
+ * 
+ * The pool has THREADS threads and queues up to MAX_QUEUED tasks. A task
+ * submitted while the queue is full runs on the submitting thread, so a burst
+ * of responses slows down the threads delivering them rather than piling up.
+ * The UI thread is never slowed down this way: its tasks go to an overflow
+ * thread instead, which has an unbounded queue. Tasks never run on the UI
+ * thread.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+final class DecodeExecutor {
+    private static final int THREADS = 2;
+    private static final int MAX_QUEUED = 32;
+    
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "decode-" + count.incrementAndGet());
+        }
+    };
+    
+    // for tasks the UI thread submits while the pool's queue is full
+    private static final ExecutorService overflow = Executors.newSingleThreadExecutor(threadFactory);
+    
+    private static final RejectedExecutionHandler callerRunsOffUiThread = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if(Looper.myLooper() == Looper.getMainLooper()) {
+                overflow.execute(task);
+            }
+            else {
+                task.run();
+            }
+        }
+    };
+    
+    private static final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                               new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+                               threadFactory, callerRunsOffUiThread);
+    
+    private DecodeExecutor() {}
+    
+    /**
+     * Runs a decoding task on the decode stage
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
+    }
+}
@@ -0,0 +1,228 @@
+package com.benweissmann.zmobile.service;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Request metrics, kept in memory per RPC method (e.g. "messenger.get") or
+ * binder operation (e.g. "ZephyrBinder#fetchClasses"): counters for calls,
+ * errors, timeouts, retries, re-auths and cancels, and histograms of how long
+ * requests waited before being sent, how long the round trip to zserv took,
+ * and how long decoding the response took.
+ * 
+ * aXMLRPC doesn't expose its connection, so DNS, TLS, server and download
+ * time are all part of the round trip, and byte counts aren't known.
+ * 
+ * Metrics are off unless enabled in the settings. While they're off, now()
+ * returns 0 without reading the clock and every record method returns after
+ * reading one volatile field. See report() for the text report, which is
+ * shown by the MetricsActivity and dumped by
+ * "adb shell dumpsys activity service ZephyrService".
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class Metrics {
+    public static enum Timer {
+        QUEUE_WAIT("queue wait"),
+        ROUND_TRIP("round trip"),
+        DECODE("decode");
+        
+        private final String label;
+        
+        private Timer(String label) {
+            this.label = label;
+        }
+    }
+    
+    public static enum Counter {
+        CALLS("calls"),
+        ERRORS("errors"),
+        SERVER_ERRORS("server errors"),
+        TIMEOUTS("timeouts"),
+        RETRIES("retries"),
+        REAUTHS("re-auths"),
+        CANCELS("cancels");
+        
+        private final String label;
+        
+        private Counter(String label) {
+            this.label = label;
+        }
+    }
+    
+    private static volatile boolean enabled = false;
+    
+    // by method; guarded by the Metrics class
+    private static final Map<String, MethodStats> stats = new TreeMap<String, MethodStats>();
+    private static long since = System.currentTimeMillis();
+    
+    private Metrics() {}
+    
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Turns metrics on or off. Turning them on starts from empty metrics.
+     */
+    public static synchronized void setEnabled(boolean enable) {
+        if(enable && !enabled) {
+            reset();
+        }
+        enabled = enable;
+    }
+    
+    /**
+     * Forgets everything recorded so far
+     */
+    public static synchronized void reset() {
+        stats.clear();
+        since = System.currentTimeMillis();
+    }
+    
+    /**
+     * Returns a start time to pass to time(), or 0 if metrics are off
+     */
+    public static long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+    
+    /**
+     * Records the time since start (from now()) for a method. Does nothing
+     * if metrics are off, or were off at the start.
+     */
+    public static void time(String method, Timer timer, long start) {
+        if(!enabled || start == 0) {
+            return;
+        }
+        
+        long micros = (System.nanoTime() - start) / 1000;
+        synchronized(Metrics.class) {
+            get(method).histograms[timer.ordinal()].add(micros);
+        }
+    }
+    
+    /**
+     * Counts an event for a method. Does nothing if metrics are off.
+     */
+    public static void count(String method, Counter counter) {
+        if(!enabled) {
+            return;
+        }
+        
+        synchronized(Metrics.class) {
+            get(method).counters[counter.ordinal()]++;
+        }
+    }
+    
+    /**
+     * Returns a plain-text report of everything recorded since metrics were
+     * enabled or last reset.
+     */
+    public static synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        String start = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(since));
+        
+        if(!enabled) {
+            report.append("Metrics are off; turn them on in Settings.\n");
+        }
+        report.append("Since ").append(start).append('\n');
+        
+        for(Map.Entry<String, MethodStats> entry : stats.entrySet()) {
+            report.append('\n').append(entry.getKey()).append('\n');
+            entry.getValue().appendTo(report);
+        }
+        
+        return report.toString();
+    }
+    
+    private static MethodStats get(String method) {
+        MethodStats methodStats = stats.get(method);
+        if(methodStats == null) {
+            methodStats = new MethodStats();
+            stats.put(method, methodStats);
+        }
+        return methodStats;
+    }
+    
+    private static final class MethodStats {
+        public final long[] counters = new long[Counter.values().length];
+        public final Histogram[] histograms = new Histogram[Timer.values().length];
+        
+        public MethodStats() {
+            for(int i = 0; i < this.histograms.length; i++) {
+                this.histograms[i] = new Histogram();
+            }
+        }
+        
+        public void appendTo(StringBuilder report) {
+            report.append("  ");
+            for(Counter counter : Counter.values()) {
+                if(counter.ordinal() > 0) {
+                    report.append(", ");
+                }
+                report.append(counter.label).append(' ')
+                      .append(this.counters[counter.ordinal()]);
+            }
+            report.append('\n');
+            
+            for(Timer timer : Timer.values()) {
+                Histogram histogram = this.histograms[timer.ordinal()];
+                if(histogram.count > 0) {
+                    report.append("  ").append(timer.label).append(": ");
+                    histogram.appendTo(report);
+                    report.append('\n');
+                }
+            }
+        }
+    }
+    
+    // durations in microseconds, in power-of-two buckets: bucket i holds
+    // durations below 2^i us, and the last bucket holds everything longer
+    private static final class Histogram {
+        private static final int BUCKETS = 26;
+        
+        public final long[] buckets = new long[BUCKETS];
+        public long count = 0;
+        public long total = 0;
+        public long max = 0;
+        
+        public void add(long micros) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(micros, 0));
+            this.buckets[Math.min(bucket, BUCKETS - 1)]++;
+            this.count++;
+            this.total += micros;
+            this.max = Math.max(this.max, micros);
+        }
+        
+        // the upper bound of the bucket the given fraction of durations are
+        // in or below
+        private long percentile(double fraction) {
+            long needed = (long) Math.ceil(this.count * fraction);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS - 1; i++) {
+                seen += this.buckets[i];
+                if(seen >= needed) {
+                    return 1L << i;
+                }
+            }
+            return this.max;
+        }
+        
+        public void appendTo(StringBuilder report) {
+            report.append("n ").append(this.count)
+                  .append(", mean ").append(millis(this.total / this.count))
+                  .append(", p50 <").append(millis(this.percentile(0.5)))
+                  .append(", p95 <").append(millis(this.percentile(0.95)))
+                  .append(", max ").append(millis(this.max));
+        }
+        
+        private static String millis(long micros) {
+            return (micros / 1000) + "." + ((micros % 1000) / 100) + "ms";
+        }
+    }
+}
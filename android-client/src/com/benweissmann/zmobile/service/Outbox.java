@@ -0,0 +1,193 @@
+package com.benweissmann.zmobile.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.benweissmann.zmobile.service.objects.IQuery;
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+import com.benweissmann.zmobile.util.QueryMatcher;
+
+import android.util.Log;
+
+/**
+ * Zephyrgrams that have been composed but not yet accepted by zserv, oldest
+ * first.
+ *
+ * The outbox is written ahead: addAll() doesn't return until the new outbox
+ * is on disk, so a queued Zephyrgram survives the network dropping, the
+ * service being killed, or the phone rebooting. The file is replaced
+ * atomically (written to a temporary file and renamed), so a crash while
+ * writing leaves the previous outbox intact.
+ *
+ * This class is thread-safe.
+ *
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+class Outbox {
+    private static final int FILE_VERSION = 2;
+    
+    // the first format, written field by field without the ID or read flag
+    private static final int OLD_FILE_VERSION = 1;
+    
+    private final File file;
+    private final File tempFile;
+    private final List<Zephyrgram> zephyrgrams = new ArrayList<Zephyrgram>();
+    
+    /**
+     * Opens the outbox stored in the given directory, loading any
+     * Zephyrgrams that were queued when it was last written.
+     */
+    public Outbox(File dir) {
+        this.file = new File(dir, "outbox");
+        this.tempFile = new File(dir, "outbox.tmp");
+        
+        try {
+            this.load();
+        }
+        catch (IOException e) {
+            // don't let a corrupt outbox stop us from sending new zephyrgrams
+            Log.e("Outbox", "couldn't load outbox, discarding it", e);
+            this.zephyrgrams.clear();
+        }
+    }
+    
+    /**
+     * Queues Zephyrgrams, returning once they've been written to disk.
+     * @throws IOException if the outbox couldn't be written, in which case
+     *                     none of the Zephyrgrams are queued
+     */
+    public synchronized void addAll(List<Zephyrgram> queued) throws IOException {
+        int oldSize = this.zephyrgrams.size();
+        this.zephyrgrams.addAll(queued);
+        
+        try {
+            this.save();
+        }
+        catch (IOException e) {
+            this.zephyrgrams.subList(oldSize, this.zephyrgrams.size()).clear();
+            throw e;
+        }
+    }
+    
+    /**
+     * Removes Zephyrgrams that have been sent (or rejected), writing the
+     * outbox once for the whole batch.
+     */
+    public synchronized void removeAll(List<Zephyrgram> done) {
+        if(done.isEmpty()) {
+            return;
+        }
+        
+        // remove by identity, since the same zephyrgram may be queued twice
+        for(Zephyrgram z : done) {
+            for(int i = 0; i < this.zephyrgrams.size(); i++) {
+                if(this.zephyrgrams.get(i) == z) {
+                    this.zephyrgrams.remove(i);
+                    break;
+                }
+            }
+        }
+        
+        try {
+            this.save();
+        }
+        catch (IOException e) {
+            // the worst case is that these are sent again after a restart
+            Log.e("Outbox", "couldn't save outbox", e);
+        }
+    }
+    
+    /**
+     * Returns every queued Zephyrgram, oldest first
+     */
+    public synchronized List<Zephyrgram> getAll() {
+        return new ArrayList<Zephyrgram>(this.zephyrgrams);
+    }
+    
+    /**
+     * Returns the queued Zephyrgrams that match a query, oldest first
+     */
+    public synchronized List<Zephyrgram> get(IQuery query) {
+        return QueryMatcher.compile(query).filter(this.zephyrgrams);
+    }
+    
+    public synchronized boolean isEmpty() {
+        return this.zephyrgrams.isEmpty();
+    }
+    
+    private void load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        }
+        catch (FileNotFoundException e) {
+            // nothing has been queued yet
+            return;
+        }
+        
+        try {
+            int version = in.readInt();
+            if(version != FILE_VERSION && version != OLD_FILE_VERSION) {
+                throw new IOException("unknown outbox version");
+            }
+            
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                if(version == FILE_VERSION) {
+                    this.zephyrgrams.add(ZephyrgramCodec.readZephyrgram(in));
+                }
+                else {
+                    this.zephyrgrams.add(readOldZephyrgram(in));
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    private static Zephyrgram readOldZephyrgram(DataInputStream in) throws IOException {
+        String cls = ZephyrgramCodec.readString(in);
+        String instance = ZephyrgramCodec.readString(in);
+        String sender = ZephyrgramCodec.readString(in);
+        long timestamp = in.readLong();
+        String user = ZephyrgramCodec.readString(in);
+        String body = ZephyrgramCodec.readString(in);
+        
+        return new Zephyrgram(Zephyrgram.NO_ID, cls, instance, sender,
+                              timestamp, true, user, body);
+    }
+    
+    private void save() throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(this.tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(this.zephyrgrams.size());
+            for(Zephyrgram z : this.zephyrgrams) {
+                ZephyrgramCodec.writeZephyrgram(out, z);
+            }
+            
+            // make sure the data is on disk before it replaces the outbox
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        
+        if(!this.tempFile.renameTo(this.file)) {
+            throw new IOException("couldn't replace outbox");
+        }
+    }
+}
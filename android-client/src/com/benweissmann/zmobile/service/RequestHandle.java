@@ -0,0 +1,144 @@
+package com.benweissmann.zmobile.service;
+
+import com.benweissmann.zmobile.service.callbacks.ZephyrCallback;
+import com.benweissmann.zmobile.service.callbacks.ZephyrStatusCallback;
+
+/**
+ * A request made through the ZephyrBinder, which can be cancelled. Every
+ * ZephyrBinder method that talks to zserv returns one.
+ * 
+ * A request can take several calls to zserv (e.g. creating a filter and
+ * then fetching a page of it). Cancelling it aborts the call in flight,
+ * skips decoding its response, and stops any further calls from being made.
+ * The request's callback won't be called unless it had already started.
+ * 
+ * Fetches made for an Activity are cancelled when it releases its binding
+ * (see ZephyrServiceBridge.release), so a response for an Activity that's
+ * gone isn't decoded or shown. Writes (e.g. markRead) are left to finish.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class RequestHandle {
+    private boolean cancelled = false;
+    private boolean done = false;
+    
+    // the call to zserv in flight, if any
+    private Call call = null;
+    
+    /**
+     * A call to zserv that can be aborted
+     */
+    static interface Call {
+        public void abort();
+    }
+    
+    /**
+     * Cancels the request. Does nothing if it has already finished.
+     */
+    public void cancel() {
+        Call inFlight;
+        
+        synchronized(this) {
+            if(this.cancelled || this.done) {
+                return;
+            }
+            this.cancelled = true;
+            inFlight = this.call;
+            this.call = null;
+        }
+        
+        if(inFlight != null) {
+            inFlight.abort();
+        }
+    }
+    
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+    
+    /**
+     * Returns true if the request has called its callback or been cancelled
+     */
+    public synchronized boolean isDone() {
+        return this.done || this.cancelled;
+    }
+    
+    /**
+     * Records the call now in flight for this request. Returns false, and
+     * records nothing, if the request has been cancelled; the caller must
+     * then abort the call.
+     */
+    synchronized boolean start(Call call) {
+        if(this.cancelled) {
+            return false;
+        }
+        this.call = call;
+        return true;
+    }
+    
+    /**
+     * Records that a call has finished
+     */
+    synchronized void finished(Call call) {
+        if(this.call == call) {
+            this.call = null;
+        }
+    }
+    
+    // returns true if the callback should be called, marking the request
+    // done
+    private synchronized boolean deliver() {
+        if(this.cancelled) {
+            return false;
+        }
+        this.done = true;
+        return true;
+    }
+    
+    /**
+     * Wraps a request's callback so it isn't called once the request has
+     * been cancelled, and the request is done once it has been.
+     */
+    <T> ZephyrCallback<T> guard(final ZephyrCallback<T> callback) {
+        return new ZephyrCallback<T>() {
+            public void run(T result) {
+                if(deliver()) {
+                    callback.run(result);
+                }
+            }
+            
+            public void onError(Exception e) {
+                if(deliver()) {
+                    callback.onError(e);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Like guard(ZephyrCallback), for a ZephyrStatusCallback
+     */
+    ZephyrStatusCallback guard(final ZephyrStatusCallback callback) {
+        return new ZephyrStatusCallback() {
+            public void onSuccess() {
+                if(deliver()) {
+                    callback.onSuccess();
+                }
+            }
+            
+            public void onFailure() {
+                if(deliver()) {
+                    callback.onFailure();
+                }
+            }
+            
+            public void onError(Exception e) {
+                if(deliver()) {
+                    callback.onError(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,241 @@
+package com.benweissmann.zmobile.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * An on-device full-text index of the Zephyrgrams we've fetched, so they can
+ * be searched by body and instance without a round trip to zserv (or while
+ * offline).
+ * 
+ * Zephyrgrams are stored in an ordinary table, keyed by their server ID, and
+ * their instance and body are indexed in an FTS3 table with the same IDs.
+ * Pages are added as they're fetched; writes happen on a single background
+ * thread so they never hold up displaying a page. Only the most recent
+ * MAX_ZEPHYRGRAMS are kept. Read flags are as of when a Zephyrgram was last
+ * fetched.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public class SearchIndex extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "search_index.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final int MAX_ZEPHYRGRAMS = 20000;
+    
+    private static SearchIndex instance = null;
+    
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    
+    private SearchIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+    
+    /**
+     * Returns the search index, opening it if needed
+     */
+    public static synchronized SearchIndex getInstance(Context context) {
+        if(instance == null) {
+            instance = new SearchIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE zephyrgrams (" +
+                   "id INTEGER PRIMARY KEY, cls TEXT, instance TEXT, " +
+                   "sender TEXT, user TEXT, timestamp INTEGER, " +
+                   "read INTEGER, body TEXT)");
+        db.execSQL("CREATE INDEX zephyrgrams_timestamp ON zephyrgrams (timestamp)");
+        db.execSQL("CREATE VIRTUAL TABLE zephyrgram_text USING fts3 (instance, body)");
+    }
+    
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the index is only a cache, so just rebuild it
+        db.execSQL("DROP TABLE IF EXISTS zephyrgrams");
+        db.execSQL("DROP TABLE IF EXISTS zephyrgram_text");
+        this.onCreate(db);
+    }
+    
+    /**
+     * Adds Zephyrgrams to the index in the background, replacing any already
+     * indexed with the same IDs. Zephyrgrams without IDs are skipped.
+     */
+    public void addAsync(final List<Zephyrgram> zephyrgrams) {
+        this.writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    add(zephyrgrams);
+                }
+                catch(SQLiteException e) {
+                    Log.e("SearchIndex", "failed to index zephyrgrams", e);
+                }
+            }
+        });
+    }
+    
+    private void add(List<Zephyrgram> zephyrgrams) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        
+        db.beginTransaction();
+        try {
+            SQLiteStatement insertRow = db.compileStatement(
+                "INSERT OR REPLACE INTO zephyrgrams " +
+                "(id, cls, instance, sender, user, timestamp, read, body) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            SQLiteStatement deleteText = db.compileStatement(
+                "DELETE FROM zephyrgram_text WHERE docid = ?");
+            SQLiteStatement insertText = db.compileStatement(
+                "INSERT INTO zephyrgram_text (docid, instance, body) VALUES (?, ?, ?)");
+            
+            for(Zephyrgram z : zephyrgrams) {
+                if(z.getId() == Zephyrgram.NO_ID) {
+                    continue;
+                }
+                
+                insertRow.bindLong(1, z.getId());
+                bindString(insertRow, 2, z.getCls());
+                bindString(insertRow, 3, z.getInstance());
+                bindString(insertRow, 4, z.getRawSender());
+                bindString(insertRow, 5, z.getRawUser());
+                insertRow.bindLong(6, z.getTimeMillis());
+                insertRow.bindLong(7, z.isRead() ? 1 : 0);
+                bindString(insertRow, 8, z.getBody());
+                insertRow.execute();
+                
+                // FTS3 tables don't support INSERT OR REPLACE reliably
+                deleteText.bindLong(1, z.getId());
+                deleteText.execute();
+                
+                insertText.bindLong(1, z.getId());
+                bindString(insertText, 2, z.getInstance());
+                bindString(insertText, 3, z.getBody());
+                insertText.execute();
+            }
+            
+            insertRow.close();
+            deleteText.close();
+            insertText.close();
+            
+            this.trim(db);
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+    
+    // drops all but the most recent MAX_ZEPHYRGRAMS
+    private void trim(SQLiteDatabase db) {
+        SQLiteStatement count = db.compileStatement("SELECT COUNT(*) FROM zephyrgrams");
+        long total = count.simpleQueryForLong();
+        count.close();
+        
+        if(total <= MAX_ZEPHYRGRAMS) {
+            return;
+        }
+        
+        String oldest = "SELECT id FROM zephyrgrams ORDER BY timestamp LIMIT " +
+                        (total - MAX_ZEPHYRGRAMS);
+        db.execSQL("DELETE FROM zephyrgram_text WHERE docid IN (" + oldest + ")");
+        db.execSQL("DELETE FROM zephyrgrams WHERE id IN (" + oldest + ")");
+    }
+    
+    /**
+     * Returns the most recent indexed Zephyrgrams whose instance or body
+     * contain words starting with each word of the search, newest first.
+     * Runs on the calling thread, so don't call it from the UI thread.
+     * @param search     The user's search, e.g. "lin hel" matches a
+     *                   Zephyrgram containing "linux" and "help"
+     * @param maxResults The maximum number of Zephyrgrams to return
+     */
+    public List<Zephyrgram> search(String search, int maxResults) {
+        List<Zephyrgram> results = new ArrayList<Zephyrgram>();
+        
+        String match = toMatchExpression(search);
+        if(match == null) {
+            return results;
+        }
+        
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(
+            "SELECT z.id, z.cls, z.instance, z.sender, z.user, z.timestamp, " +
+            "z.read, z.body " +
+            "FROM zephyrgram_text JOIN zephyrgrams z ON z.id = zephyrgram_text.docid " +
+            "WHERE zephyrgram_text MATCH ? " +
+            "ORDER BY z.timestamp DESC LIMIT " + maxResults,
+            new String[]{match});
+        
+        try {
+            while(cursor.moveToNext()) {
+                results.add(new Zephyrgram(cursor.getInt(0),
+                                           cursor.getString(1),
+                                           cursor.getString(2),
+                                           cursor.getString(3),
+                                           cursor.getLong(5),
+                                           cursor.getInt(6) != 0,
+                                           cursor.getString(4),
+                                           cursor.getString(7)));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Turns a user's search into an FTS MATCH expression that requires a
+     * prefix match on every word, or null if the search has no words.
+     * Anything other than letters and digits separates words, so the user
+     * can't inject FTS syntax.
+     */
+    static String toMatchExpression(String search) {
+        StringBuilder match = new StringBuilder();
+        int length = search.length();
+        int i = 0;
+        
+        while(i < length) {
+            while(i < length && !Character.isLetterOrDigit(search.charAt(i))) {
+                i++;
+            }
+            
+            int start = i;
+            while(i < length && Character.isLetterOrDigit(search.charAt(i))) {
+                i++;
+            }
+            
+            if(i > start) {
+                if(match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(search, start, i).append('*');
+            }
+        }
+        
+        return (match.length() == 0) ? null : match.toString();
+    }
+    
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if(value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindString(index, value);
+        }
+    }
+}
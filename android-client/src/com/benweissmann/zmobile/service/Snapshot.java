@@ -0,0 +1,322 @@
+package com.benweissmann.zmobile.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.benweissmann.zmobile.service.objects.IQuery;
+import com.benweissmann.zmobile.service.objects.ZephyrClass;
+import com.benweissmann.zmobile.service.objects.ZephyrInstance;
+import com.benweissmann.zmobile.service.objects.ZephyrPersonals;
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+import com.benweissmann.zmobile.service.objects.ZephyrgramResultSet;
+import com.benweissmann.zmobile.service.objects.ZephyrgramSet;
+import com.benweissmann.zmobile.util.QueryNormalizer;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * What the lists looked like when they were last shown, so a cold start can
+ * show them immediately and refresh them in the background, instead of
+ * waiting on the network.
+ *
+ * The snapshot holds the last ZephyrgramSets shown by the most recently shown
+ * MAX_LISTS lists, and the last page viewed for the most recently viewed
+ * MAX_PAGES queries. It's
+ * kept in memory and written to a compact binary file a moment after it
+ * changes, on a background thread. The file is read in full the first time
+ * the snapshot is used; it's small enough that this takes a few
+ * milliseconds.
+ *
+ * Everything in the snapshot may be out of date. Pages from the snapshot
+ * have no filter ID, since zserv may have been restarted since.
+ *
+ * This class is thread-safe.
+ *
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public class Snapshot {
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_LISTS = 20;
+    private static final int MAX_SETS = 500;
+    private static final int MAX_PAGES = 10;
+    private static final long SAVE_DELAY_MS = 1000;
+    
+    private static final byte CLASS = 1;
+    private static final byte INSTANCE = 2;
+    private static final byte PERSONALS = 3;
+    
+    private static Snapshot instance = null;
+    
+    private final File file;
+    private final File tempFile;
+    // least recently shown first
+    private final LinkedHashMap<String, List<ZephyrgramSet>> sets =
+        new LinkedHashMap<String, List<ZephyrgramSet>>(16, 0.75f, true);
+    
+    // by normalized query, least recently viewed first
+    private final LinkedHashMap<String, Page> pages =
+        new LinkedHashMap<String, Page>(16, 0.75f, true);
+    
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> pendingSave = null;
+    
+    private Snapshot(File dir) {
+        this.file = new File(dir, "snapshot");
+        this.tempFile = new File(dir, "snapshot.tmp");
+        
+        long start = SystemClock.uptimeMillis();
+        try {
+            this.load();
+        }
+        catch (IOException e) {
+            // it's only a snapshot; start over
+            Log.e("Snapshot", "couldn't load snapshot, discarding it", e);
+            this.sets.clear();
+            this.pages.clear();
+        }
+        Log.i("Snapshot", "loaded in " + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+    
+    /**
+     * Returns the snapshot, loading it if needed
+     */
+    public static synchronized Snapshot getInstance(Context context) {
+        if(instance == null) {
+            instance = new Snapshot(context.getApplicationContext().getFilesDir());
+        }
+        return instance;
+    }
+    
+    /**
+     * Returns the ZephyrgramSets last stored for a list, or null if there
+     * aren't any.
+     */
+    public synchronized List<ZephyrgramSet> getSets(String key) {
+        List<ZephyrgramSet> stored = this.sets.get(key);
+        return (stored == null) ? null : new ArrayList<ZephyrgramSet>(stored);
+    }
+    
+    /**
+     * Stores the ZephyrgramSets shown by a list, forgetting the least
+     * recently shown list if there are more than MAX_LISTS. Only the first
+     * MAX_SETS are kept.
+     */
+    public synchronized void putSets(String key, List<? extends ZephyrgramSet> items) {
+        int count = Math.min(items.size(), MAX_SETS);
+        this.sets.put(key, new ArrayList<ZephyrgramSet>(items.subList(0, count)));
+        removeEldest(this.sets, MAX_LISTS);
+        this.scheduleSave();
+    }
+    
+    /**
+     * Returns the page last viewed for a query, or null if there isn't one
+     */
+    public synchronized ZephyrgramResultSet getPage(IQuery query) {
+        Page page = this.pages.get(key(query));
+        if(page == null) {
+            return null;
+        }
+        return new ZephyrgramResultSet(query, null, page.offset, page.zephyrgrams);
+    }
+    
+    /**
+     * Stores the page last viewed for a query, forgetting the page of the
+     * least recently viewed query if there are more than MAX_PAGES.
+     */
+    public synchronized void putPage(ZephyrgramResultSet resultSet) {
+        this.pages.put(key(resultSet.getQuery()),
+                       new Page(resultSet.getOffset(), resultSet.getZephyrgrams()));
+        
+        removeEldest(this.pages, MAX_PAGES);
+        this.scheduleSave();
+    }
+    
+    private static void removeEldest(Map<String, ?> map, int maxSize) {
+        while(map.size() > maxSize) {
+            map.remove(map.keySet().iterator().next());
+        }
+    }
+    
+    private static String key(IQuery query) {
+        return QueryNormalizer.normalize(query).toString();
+    }
+    
+    // changes often come in bursts (e.g. several pages of a list), so
+    // write them together
+    private void scheduleSave() {
+        if(this.pendingSave != null) {
+            return;
+        }
+        
+        this.pendingSave = this.writer.schedule(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    private static final class Page {
+        public final int offset;
+        public final List<Zephyrgram> zephyrgrams;
+        
+        public Page(int offset, List<Zephyrgram> zephyrgrams) {
+            this.offset = offset;
+            this.zephyrgrams = new ArrayList<Zephyrgram>(zephyrgrams);
+        }
+    }
+    
+    private void load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        }
+        catch (FileNotFoundException e) {
+            // nothing has been shown yet
+            return;
+        }
+        
+        try {
+            if(in.readInt() != FILE_VERSION) {
+                throw new IOException("unknown snapshot version");
+            }
+            
+            int listCount = in.readInt();
+            for(int i = 0; i < listCount; i++) {
+                String key = in.readUTF();
+                int count = in.readInt();
+                List<ZephyrgramSet> items = new ArrayList<ZephyrgramSet>(count);
+                for(int j = 0; j < count; j++) {
+                    items.add(readSet(in));
+                }
+                this.sets.put(key, items);
+            }
+            
+            int pageCount = in.readInt();
+            for(int i = 0; i < pageCount; i++) {
+                String key = in.readUTF();
+                int offset = in.readInt();
+                int count = in.readInt();
+                List<Zephyrgram> zephyrgrams = new ArrayList<Zephyrgram>(count);
+                for(int j = 0; j < count; j++) {
+                    zephyrgrams.add(ZephyrgramCodec.readZephyrgram(in));
+                }
+                this.pages.put(key, new Page(offset, zephyrgrams));
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    private void save() {
+        Map<String, List<ZephyrgramSet>> sets;
+        Map<String, Page> pages;
+        
+        // the stored lists are never modified, so copying the maps is enough
+        synchronized(this) {
+            this.pendingSave = null;
+            sets = new LinkedHashMap<String, List<ZephyrgramSet>>(this.sets);
+            pages = new LinkedHashMap<String, Page>(this.pages);
+        }
+        
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tempFile)));
+            try {
+                out.writeInt(FILE_VERSION);
+                
+                out.writeInt(sets.size());
+                for(Map.Entry<String, List<ZephyrgramSet>> entry : sets.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for(ZephyrgramSet item : entry.getValue()) {
+                        writeSet(out, item);
+                    }
+                }
+                
+                out.writeInt(pages.size());
+                for(Map.Entry<String, Page> entry : pages.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().offset);
+                    out.writeInt(entry.getValue().zephyrgrams.size());
+                    for(Zephyrgram z : entry.getValue().zephyrgrams) {
+                        ZephyrgramCodec.writeZephyrgram(out, z);
+                    }
+                }
+            }
+            finally {
+                out.close();
+            }
+            
+            if(!this.tempFile.renameTo(this.file)) {
+                throw new IOException("couldn't replace snapshot");
+            }
+        }
+        catch (IOException e) {
+            Log.e("Snapshot", "couldn't save snapshot", e);
+        }
+    }
+    
+    private static void writeSet(DataOutputStream out, ZephyrgramSet item) throws IOException {
+        if(item instanceof ZephyrClass) {
+            ZephyrClass cls = (ZephyrClass) item;
+            out.writeByte(CLASS);
+            out.writeUTF(cls.getName());
+            out.writeBoolean(cls.isStarred());
+            out.writeBoolean(cls.isHidden());
+        }
+        else if(item instanceof ZephyrInstance) {
+            ZephyrInstance instance = (ZephyrInstance) item;
+            out.writeByte(INSTANCE);
+            out.writeUTF(instance.getCls());
+            out.writeUTF(instance.getName());
+        }
+        else if(item instanceof ZephyrPersonals) {
+            out.writeByte(PERSONALS);
+            out.writeUTF(((ZephyrPersonals) item).getRawSender());
+        }
+        else {
+            throw new IOException("can't store " + item);
+        }
+        
+        out.writeInt(item.getUnreadCount());
+        out.writeInt(item.getTotalCount());
+    }
+    
+    private static ZephyrgramSet readSet(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        
+        switch(type) {
+        case CLASS:
+            String name = in.readUTF();
+            boolean starred = in.readBoolean();
+            boolean hidden = in.readBoolean();
+            return new ZephyrClass(name, in.readInt(), in.readInt(), starred, hidden);
+        case INSTANCE:
+            String cls = in.readUTF();
+            String instance = in.readUTF();
+            return new ZephyrInstance(cls, instance, in.readInt(), in.readInt());
+        case PERSONALS:
+            String sender = in.readUTF();
+            return new ZephyrPersonals(sender, in.readInt(), in.readInt());
+        default:
+            throw new IOException("unknown set type " + type);
+        }
+    }
+}
@@ -1,21 +1,23 @@
 package com.benweissmann.zmobile.service;
 
 import java.net.ConnectException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import com.benweissmann.zmobile.R;
 import com.benweissmann.zmobile.auth.AuthHelper;
 import com.benweissmann.zmobile.auth.Credentials;
 import com.benweissmann.zmobile.auth.CredentialsCallback;
+import com.benweissmann.zmobile.service.Metrics.Counter;
+import com.benweissmann.zmobile.service.Metrics.Timer;
 import com.benweissmann.zmobile.service.callbacks.ZephyrStatusCallback;
 import com.benweissmann.zmobile.setup.NoStoredZServException;
 import com.benweissmann.zmobile.setup.SetupHelper;
 import com.benweissmann.zmobile.setup.ZServ;
 import com.benweissmann.zmobile.setup.ZServCallback;
 import com.benweissmann.zmobile.setup.ZServException;
+import com.benweissmann.zmobile.util.Tracer;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -34,9 +36,13 @@ import de.timroes.axmlrpc.XMLRPCServerException;
 
 public class XMLRPCHelper {
     private final static int TIMEOUT_SECONDS = 15;
-    private final static int MIN_SERVER_VERSION = 1;
+    private final static int MIN_SERVER_VERSION = 3;
     private XMLRPCClient client = null;
     
+    // runs the timeouts of every call, and aborts cancelled calls off the
+    // caller's thread
+    private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1);
+    
     private Object[] addExtraParams(Activity activity, Object[] params) {
         Object[] newParams = new Object[params.length + 2];
         
@@ -59,18 +65,23 @@ public class XMLRPCHelper {
     }
     
     private void initClient(Activity activity, final RunnableWithError onComplete) {
+        final Tracer.Span span = Tracer.begin("XMLRPCHelper.initClient");
+        
         SetupHelper.getZServOrPrompt(activity, new ZServCallback() {
             public void run(ZServ zServ) {
                 try {
                     updateClient(zServ);
+                    span.end();
                     onComplete.run();
                 }
                 catch (NoStoredZServException e) {
+                    span.end();
                     onComplete.onError(e);
                 }
             }
             
             public void onError(ZServException e) {
+                span.end();
                 onComplete.onError(e);
             }
         });
@@ -82,10 +93,23 @@ public class XMLRPCHelper {
                                   XMLRPCClient.FLAGS_SSL_IGNORE_INVALID_HOST);
     }
     
-    public void callAsync(final Activity activity, final XMLRPCCallback callback, final String method, final Object... params) {
+    public void callAsync(Activity activity, XMLRPCCallback callback, String method, Object... params) {
+        this.callAsync(activity, new RequestHandle(), callback, method, params);
+    }
+    
+    /**
+     * Calls a method on zserv as part of a request. If the request is
+     * cancelled, the call is aborted (or never made) and the callback isn't
+     * called.
+     */
+    public void callAsync(final Activity activity, final RequestHandle handle, final XMLRPCCallback callback,
+                          final String method, final Object... params) {
+        final long queuedAt = Metrics.now();
+        
         initClientIfNeeded(activity, new RunnableWithError() {
             public void run() {
-                new AsyncCall(activity, callback, method, addExtraParams(activity, params)).run();
+                Metrics.time(method, Timer.QUEUE_WAIT, queuedAt);
+                new AsyncCall(activity, handle, callback, method, addExtraParams(activity, params)).run();
             }
             public void onError(Exception e) {
                 SetupHelper.promptForZServ(activity, new ZServCallback() {
@@ -94,23 +118,35 @@ public class XMLRPCHelper {
                             updateClient(zServ);
                         }
                         catch (NoStoredZServException e) {
-                            callback.onError(0, new XMLRPCException("Could not contact server", e));
+                            reportError(callback, new XMLRPCException("Could not contact server", e));
+                            return;
                         }
-                        callAsync(activity, callback, method, params);
+                        callAsync(activity, handle, callback, method, params);
                     }
                     
                     public void onError(ZServException e) {
-                       callback.onError(0, new XMLRPCException("Could not contact server", e));
+                        reportError(callback, new XMLRPCException("Could not contact server", e));
                     }
                 }, false);
             }
         });
     }
     
+    // passes an error to a callback on the decode stage, since the
+    // SetupHelper's callbacks run on the UI thread and callbacks mustn't
+    // (see ZephyrCallback)
+    private static void reportError(final XMLRPCCallback callback, final XMLRPCException error) {
+        DecodeExecutor.execute(new Runnable() {
+            public void run() {
+                callback.onError(0, error);
+            }
+        });
+    }
+    
     private void auth(final Activity activity, final ZephyrStatusCallback callback) {
         AuthHelper.getCredentialsOrPrompt(activity, new CredentialsCallback() {
             public void run(Credentials credentials) {
-                new AsyncCall(activity, new XMLRPCCallback() {
+                new AsyncCall(activity, new RequestHandle(), new XMLRPCCallback() {
                     public void onServerError(long id, XMLRPCServerException error) {
                         Log.e("XMLRPCHelper", "auth got server error", error);
                         ServerError serverError = getServerError((XMLRPCServerException) error);
@@ -144,41 +180,127 @@ public class XMLRPCHelper {
         });
     }
     
-    private class AsyncCall {
+    private class AsyncCall implements RequestHandle.Call {
         private static final int TOKEN_ARG_INDEX = 1;
         
+        private final RequestHandle handle;
         private final XMLRPCCallback callback;
         private final String method;
         private final Object[] params;
-        private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
         private ScheduledFuture<?> future = null;
+        
+        // the ID of the call in flight, once it has been sent; guarded by
+        // this. aborted is set if the call is aborted before it's sent, in
+        // which case it's cancelled as soon as it is.
         private long asyncCallId;
+        private boolean sent = false;
+        private boolean aborted = false;
         private Activity activity;
         private boolean noReauth;
         
-        public AsyncCall(Activity activity, XMLRPCCallback callback, String method, Object[] params) {
-            this(activity, callback, method, false, params);
+        public AsyncCall(Activity activity, RequestHandle handle, XMLRPCCallback callback, String method, Object[] params) {
+            this(activity, handle, callback, method, false, params);
         }
         
-        public AsyncCall(Activity activity, XMLRPCCallback callback, String method, Boolean noReauth, Object[] params) {
+        public AsyncCall(Activity activity, RequestHandle handle, XMLRPCCallback callback, String method,
+                         Boolean noReauth, Object[] params) {
             Log.i("XMLRPCHelper", "Creating async call " + method + " in ctx " + activity);
+            this.handle = handle;
             this.callback = callback;
             this.method = method;
             this.params = params;
             this.activity = activity;
             this.noReauth = noReauth;
+            Metrics.count(method, Counter.CALLS);
         }
         
-        private void finish() {
+        // cancels the timeout. Cancelled timeouts are removed right away, so
+        // they don't keep the callback (and the Activity) around.
+        private synchronized void finish() {
             if(future != null) {
-                future.cancel(true);
+                future.cancel(false);
+                timeouts.remove((Runnable) future);
+                future = null;
+            }
+            handle.finished(this);
+        }
+        
+        // returns true if the request was cancelled, in which case the
+        // response is dropped
+        private boolean finishCancelled() {
+            finish();
+            return handle.isCancelled();
+        }
+        
+        public void abort() {
+            finish();
+            Metrics.count(method, Counter.CANCELS);
+            
+            long id;
+            synchronized(this) {
+                this.aborted = true;
+                if(!this.sent) {
+                    // run cancels it once it's sent
+                    return;
+                }
+                id = this.asyncCallId;
             }
+            cancelCall(id);
+        }
+        
+        // aborting closes the connection, which shouldn't happen on the UI
+        // thread
+        private void cancelCall(final long id) {
+            timeouts.execute(new Runnable() {
+                public void run() {
+                    client.cancel(id);
+                }
+            });
+        }
+        
+        private synchronized long getAsyncCallId() {
+            return this.asyncCallId;
         }
         
         public void run() {
-            this.asyncCallId = client.callAsync(new XMLRPCCallback() {
+            // register the call before sending it, so a response that
+            // arrives before callAsync returns finishes it. If the request
+            // has been cancelled, don't send anything.
+            synchronized(this) {
+                this.sent = false;
+            }
+            if(!handle.start(this)) {
+                return;
+            }
+            
+            final long sentAt = Metrics.now();
+            
+            // timeout
+            synchronized(this) {
+                if(this.aborted) {
+                    return;
+                }
+                
+                this.future = timeouts.schedule(new Runnable() {
+                    public void run() {
+                        Log.i("XMLRPCHelper", "Future executed");
+                        if(finishCancelled()) {
+                            return;
+                        }
+                        Metrics.count(method, Counter.TIMEOUTS);
+                        long id = getAsyncCallId();
+                        client.cancel(id);
+                        callback.onError(id, new XMLRPCTimeoutException("Request timed out"));
+                    }
+                }, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            
+            long id = client.callAsync(new XMLRPCCallback() {
                 public void onServerError(long id, XMLRPCServerException error) {
-                    finish();
+                    if(finishCancelled()) {
+                        return;
+                    }
+                    Metrics.time(method, Timer.ROUND_TRIP, sentAt);
                     ServerError serverError = getServerError((XMLRPCServerException) error);
                     
                     if(!noReauth && (serverError == ServerError.INVALID_AUTHENTICATION)) {
@@ -186,17 +308,24 @@ public class XMLRPCHelper {
                         onAuthError(id);
                     }
                     else {
+                        Metrics.count(method, Counter.SERVER_ERRORS);
                         callback.onServerError(id, error);
                     }
                 }
                 
                 public void onResponse(long id, Object result) {
-                    finish();
+                    if(finishCancelled()) {
+                        return;
+                    }
+                    Metrics.time(method, Timer.ROUND_TRIP, sentAt);
                     callback.onResponse(id, result);
                 }
                 
                 public void onError(long id, XMLRPCException error) {
-                    finish();
+                    if(finishCancelled()) {
+                        return;
+                    }
+                    Metrics.count(method, Counter.ERRORS);
                     
                     if(error.getCause() instanceof ConnectException) {
                         // couldn't connect, try restarting
@@ -207,13 +336,15 @@ public class XMLRPCHelper {
                                     updateClient(zServ);
                                 }
                                 catch (NoStoredZServException e) {
-                                    callback.onError(0, new XMLRPCException("Could not start server"));
+                                    reportError(callback, new XMLRPCException("Could not start server"));
+                                    return;
                                 }
+                                Metrics.count(method, Counter.RETRIES);
                                 AsyncCall.this.run();
                             }
                             
                             public void onError(ZServException e) {
-                                callback.onError(0, new XMLRPCException("Could not start server"));
+                                reportError(callback, new XMLRPCException("Could not start server"));
                             }
                         }, false);
                         return;
@@ -223,17 +354,21 @@ public class XMLRPCHelper {
                 }
             }, this.method, this.params);
             
-            // timeout
-            this.future = scheduler.schedule(new Runnable() {
-                public void run() {
-                    Log.i("XMLRPCHelper", "Future executed");
-                    client.cancel(asyncCallId);
-                    callback.onError(asyncCallId, new XMLRPCTimeoutException("Request timed out"));
-                }
-            }, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            boolean cancelNow;
+            synchronized(this) {
+                this.asyncCallId = id;
+                this.sent = true;
+                cancelNow = this.aborted;
+            }
+            
+            // aborted while it was being sent
+            if(cancelNow) {
+                this.cancelCall(id);
+            }
         }
         
         private void onAuthError(final long errorId) {
+            Metrics.count(method, Counter.REAUTHS);
             auth(activity, new ZephyrStatusCallback() {
                 public void onSuccess() {
                     Log.i("XMLRPCHelper", "Re-auth suceeded");
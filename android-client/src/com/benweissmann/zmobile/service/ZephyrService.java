@@ -1,11 +1,27 @@
 package com.benweissmann.zmobile.service;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import com.benweissmann.zmobile.R;
+import com.benweissmann.zmobile.auth.AuthHelper;
+
+import com.benweissmann.zmobile.service.callbacks.OutboxListener;
 import com.benweissmann.zmobile.service.callbacks.ZephyrCallback;
 import com.benweissmann.zmobile.service.callbacks.ZephyrStatusCallback;
 import com.benweissmann.zmobile.service.objects.IQuery;
@@ -15,7 +31,9 @@ import com.benweissmann.zmobile.service.objects.ZephyrInstance;
 import com.benweissmann.zmobile.service.objects.ZephyrPersonals;
 import com.benweissmann.zmobile.service.objects.ZephyrgramResultSet;
 import com.benweissmann.zmobile.service.objects.Zephyrgram;
+import com.benweissmann.zmobile.util.QueryNormalizer;
 import com.benweissmann.zmobile.util.TextWrapper;
+import com.benweissmann.zmobile.util.Tracer;
 
 import de.timroes.axmlrpc.XMLRPCCallback;
 import de.timroes.axmlrpc.XMLRPCException;
@@ -23,208 +41,391 @@ import de.timroes.axmlrpc.XMLRPCServerException;
 import android.app.Activity;
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
+import android.widget.Toast;
 
 public class ZephyrService extends Service {
     public static final int ZEPHYRGRAMS_PER_PAGE = 15;
     
+    // queries with at most this many results are fetched in full and
+    // cached, so queries they contain can be answered locally
+    private static final int FULL_FETCH_LIMIT = 100;
+    
     public static final String HOME_DOMAIN = "ATHENA.MIT.EDU";
     
     private static boolean isRunning = false; 
     private final IBinder binder = new ZephyrBinder();
     private XMLRPCHelper xmlRpcClient;
+    private final ZephyrgramCache cache = new ZephyrgramCache();
+    
+    // IDs of the server-side filters we've created, by normalized query
+    private final Map<IQuery, String> filterIds =
+        Collections.synchronizedMap(new LinkedHashMap<IQuery, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<IQuery, String> eldest) {
+                return size() > MAX_FILTER_IDS;
+            }
+        });
+    private static final int MAX_FILTER_IDS = 64;
+    
+    // the fetches made for each Activity that may not have finished, so they
+    // can be cancelled when it goes away; guarded by fetches
+    private final Map<Activity, List<RequestHandle>> fetches =
+        new HashMap<Activity, List<RequestHandle>>();
+    
+    // zephyrgrams waiting to be sent, and the state of sending them. They're
+    // sent up to MAX_BATCH_SIZE per request. A
+    // failed send is retried after retryDelayMs, which doubles (up to
+    // MAX_RETRY_DELAY_MS) with each consecutive failure.
+    private static final long MIN_RETRY_DELAY_MS = 5 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+    private static final int MAX_BATCH_SIZE = 50;
+    private Outbox outbox;
+    private final List<OutboxListener> outboxListeners = new CopyOnWriteArrayList<OutboxListener>();
+    private final ScheduledExecutorService outboxScheduler = Executors.newSingleThreadScheduledExecutor();
+    // Activities the outbox can be sent with, least recently used first;
+    // guarded by the ZephyrService
+    private final List<WeakReference<Activity>> outboxActivities = new ArrayList<WeakReference<Activity>>();
+    private boolean flushing = false;
+    private ScheduledFuture<?> retry = null;
+    private long retryDelayMs = MIN_RETRY_DELAY_MS;
+    
+    // turns metrics on and off with the setting. Preferences only hold
+    // listeners weakly, so this has to be a field.
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsListener =
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                if(key.equals(getString(R.string.pref_metrics))) {
+                    Metrics.setEnabled(prefs.getBoolean(key, false));
+                }
+            }
+        };
     
     /**
      * Class for clients to access. Because we know this service always runs in
      * the same process as its clients, we don't need to deal with IPC.
+     * 
+     * Every method that makes a request to zserv returns a RequestHandle that
+     * can cancel it. Fetches are cancelled by cancelFetches when the Activity
+     * they were made for goes away.
      */
     public class ZephyrBinder extends Binder {
-        public void send(Activity activity, final Zephyrgram zephyrgram, final ZephyrStatusCallback callback) {
-            XMLRPCCallback sendCallback = new XMLRPCCallback() {
-                public void onResponse(long id, Object result) {
-                    boolean response = (Boolean) result;
-                    if(response) {
-                        callback.onSuccess();
-                    }
-                    else {
-                        callback.onFailure();
-                    }
-                }
-                
-                public void onError(long id, XMLRPCException error) {
-                    Log.e("ZephyrBinder#send", "xmlrpc exception",
-                          error);
-                    callback.onError(error);
-                }
-                
-                public void onServerError(long id, XMLRPCServerException error) {
-                    Log.e("ZephyrBinder#send",
-                          "xmlrpc server exception", error);
-                    callback.onError(error);
-                }
-            };
-            
-            String message = TextWrapper.wrap(zephyrgram.getBody());
-            String cls = zephyrgram.getCls();
-            String instance = zephyrgram.getInstance();
-            String user = zephyrgram.getUser();
+        /**
+         * Cancels the fetches made for an Activity that haven't finished, and
+         * stops sending the outbox with it. ZephyrServiceBridge.release calls
+         * this when the Activity is destroyed.
+         */
+        public void cancelFetches(Activity activity) {
+            forgetActivity(activity);
             
-            if(cls == null || cls.equals("")) {
-                cls = Zephyrgram.PERSONALS_CLASS;
+            List<RequestHandle> handles;
+            synchronized(fetches) {
+                handles = fetches.remove(activity);
             }
             
-            if(instance == null || instance.equals("")) {
-                instance = Zephyrgram.DEFAULT_INSTANCE;
+            if(handles != null) {
+                for(RequestHandle handle : handles) {
+                    handle.cancel();
+                }
             }
-            
-            xmlRpcClient.callAsync(activity, sendCallback, "messenger.send", message, cls, instance, user);
         }
         
-        public void fetchClasses(Activity activity, final ZephyrCallback<ZephyrClass[]> callback) {
-            XMLRPCCallback classesCallback = new XMLRPCCallback() {
-                public void onResponse(long id, Object response) {
-                    try {
-                        Object[] classObjs = (Object[]) response;
-                        int length = classObjs.length;
-                        
-                        ZephyrClass[] classes = new ZephyrClass[length];
-                        
-                        for (int i = 0; i < length; i++) {
-                            @SuppressWarnings("unchecked")
-                            Map<String, Object> classObj = (Map<String, Object>) classObjs[i];
-                            String name = (String) classObj.get("cls");
-                            int unreadCount = (Integer) classObj.get("unread");
-                            int totalCount = (Integer) classObj.get("total");
-                            boolean starred = (Boolean) classObj.get("starred");
-                            boolean hidden = (Boolean) classObj.get("hidden");
-                            
-                            classes[i] = new ZephyrClass(name, unreadCount,
-                                                         totalCount, starred,
-                                                         hidden);
-                        }
-                        
-                        callback.run(classes);
-                    }
-                    catch (ClassCastException e) {
-                        callback.onError(new MalformedServerResponseException(e));
-                        return;
-                    }
-                }
-                
-                public void onError(long id, XMLRPCException error) {
-                    Log.e("ZephyrBinder#fetchClasses", "xmlrpc exception",
-                          error);
-                    callback.onError(error);
+        // returns a handle for a fetch made for an Activity, to be cancelled
+        // by cancelFetches. Finished fetches are forgotten as new ones are
+        // made, so the list stays short.
+        private RequestHandle newFetch(Activity activity) {
+            useActivity(activity);
+            RequestHandle handle = new RequestHandle();
+            
+            synchronized(fetches) {
+                List<RequestHandle> handles = fetches.get(activity);
+                if(handles == null) {
+                    handles = new ArrayList<RequestHandle>();
+                    fetches.put(activity, handles);
                 }
                 
-                public void onServerError(long id, XMLRPCServerException error) {
-                    Log.e("ZephyrBinder#fetchClasses",
-                          "xmlrpc server exception", error);
-                    callback.onError(error);
+                for(Iterator<RequestHandle> i = handles.iterator(); i.hasNext();) {
+                    if(i.next().isDone()) {
+                        i.remove();
+                    }
                 }
-            };
+                handles.add(handle);
+            }
             
-            xmlRpcClient.callAsync(activity, classesCallback, "messenger.getClasses");
+            return handle;
         }
         
-        public void fetchInstances(Activity activity, final String cls,
-                                   final ZephyrCallback<ZephyrInstance[]> callback) {
-            XMLRPCCallback instancesCallback = new XMLRPCCallback() {
-                public void onResponse(long id, Object response) {
-                    try {
-                        Object[] instanceObjs = (Object[]) response;
-                        int length = instanceObjs.length;
-                        
-                        ZephyrInstance[] instances = new ZephyrInstance[length];
-                        
-                        for (int i = 0; i < length; i++) {
-                            @SuppressWarnings("unchecked")
-                            Map<String, Object> instanceObj = (Map<String, Object>) instanceObjs[i];
-                            String name = (String) instanceObj.get("instance");
-                            int unreadCount = (Integer) instanceObj.get("unread");
-                            int totalCount = (Integer) instanceObj.get("total");
-                            
-                            instances[i] = new ZephyrInstance(cls, name,
-                                                              unreadCount,
-                                                              totalCount);
-                        }
-                        
-                        callback.run(instances);
-                    }
-                    catch (ClassCastException e) {
-                        callback.onError(new MalformedServerResponseException(e));
-                        return;
-                    }
-                }
+        /**
+         * Queues a Zephyrgram to be sent. The callback's onSuccess is called,
+         * on a background thread, as soon as the Zephyrgram is safely in the
+         * outbox; the service then sends it in the background, retrying until
+         * zserv accepts it.
+         */
+        public void send(Activity activity, Zephyrgram zephyrgram, ZephyrStatusCallback callback) {
+            this.sendAll(activity, Collections.singletonList(zephyrgram), callback);
+        }
+        
+        /**
+         * Queues several Zephyrgrams to be sent, in order, like send. The
+         * outbox is flushed in batches, so these go out in one request.
+         */
+        public void sendAll(Activity activity, List<Zephyrgram> zephyrgrams,
+                            final ZephyrStatusCallback callback) {
+            
+            // fill in what the server will, so the queued zephyrgrams can be
+            // shown in the lists they'll appear in
+            String sender = AuthHelper.loadUsername(activity);
+            if(sender != null && sender.indexOf('@') < 0) {
+                sender = sender + "@" + HOME_DOMAIN;
+            }
+            
+            final List<Zephyrgram> queued = new ArrayList<Zephyrgram>(zephyrgrams.size());
+            for(Zephyrgram zephyrgram : zephyrgrams) {
+                String cls = zephyrgram.getCls();
+                String instance = zephyrgram.getInstance();
                 
-                public void onError(long id, XMLRPCException error) {
-                    Log.e("ZephyrBinder#fetchInstances", "xmlrpc exception",
-                          error);
-                    callback.onError(error);
+                if(cls == null || cls.equals("")) {
+                    cls = Zephyrgram.PERSONALS_CLASS;
                 }
                 
-                public void onServerError(long id, XMLRPCServerException error) {
-                    Log.e("ZephyrBinder#fetchInstances",
-                          "xmlrpc server exception", error);
-                    callback.onError(error);
+                if(instance == null || instance.equals("")) {
+                    instance = Zephyrgram.DEFAULT_INSTANCE;
                 }
-            };
-            xmlRpcClient.callAsync(activity, instancesCallback,
-                                   "messenger.getInstances", cls);
-        }
-        
-        public void fetchPersonals(Activity activity, final ZephyrCallback<ZephyrPersonals[]> callback) {
-            XMLRPCCallback personalsCallback = new XMLRPCCallback() {
-                public void onResponse(long id, Object response) {
+                
+                queued.add(new Zephyrgram(cls, instance, sender, new Date(), true,
+                                          zephyrgram.getUser(), zephyrgram.getBody()));
+            }
+            
+            useActivity(activity);
+            
+            // writing the outbox waits for the disk, so do it on the outbox
+            // thread, which also keeps it in order with sends
+            outboxScheduler.execute(new Runnable() {
+                public void run() {
                     try {
-                        Object[] personalsObjs = (Object[]) response;
-                        int length = personalsObjs.length;
-                        
-                        ZephyrPersonals[] personals = new ZephyrPersonals[length];
-                        
-                        for (int i = 0; i < length; i++) {
-                            @SuppressWarnings("unchecked")
-                            Map<String, Object> personalsObj = (Map<String, Object>) personalsObjs[i];
-                            String sender = (String) personalsObj.get("sender");
-                            int unreadCount = (Integer) personalsObj.get("unread");
-                            int totalCount = (Integer) personalsObj.get("total");
-                            
-                            personals[i] = new ZephyrPersonals(sender, unreadCount, totalCount);
-                        }
-                        
-                        callback.run(personals);
+                        outbox.addAll(queued);
                     }
-                    catch (ClassCastException e) {
-                        callback.onError(new MalformedServerResponseException(e));
+                    catch (IOException e) {
+                        Log.e("ZephyrBinder#sendAll", "couldn't write outbox", e);
+                        callback.onError(e);
                         return;
                     }
+                    
+                    notifyOutboxListeners();
+                    callback.onSuccess();
+                    
+                    // the user is here now, so don't wait out a retry delay
+                    flushOutbox(true);
                 }
-                
-                public void onError(long id, XMLRPCException error) {
-                    Log.e("ZephyrBinder#fetchPersonals", "xmlrpc exception",
-                          error);
-                    callback.onError(error);
-                }
-                
-                public void onServerError(long id, XMLRPCServerException error) {
-                    Log.e("ZephyrBinder#fetchPersonals",
-                          "xmlrpc server exception", error);
-                    callback.onError(error);
-                }
-            };
+            });
+        }
+        
+        /**
+         * Returns the Zephyrgrams that match a query and are waiting to be
+         * sent, oldest first.
+         */
+        public List<Zephyrgram> getPendingZephyrgrams(IQuery query) {
+            return outbox.get(query);
+        }
+        
+        /**
+         * Registers a listener to be notified when the outbox changes. Remove
+         * it with removeOutboxListener when the caller goes away.
+         */
+        public void addOutboxListener(OutboxListener listener) {
+            outboxListeners.add(listener);
+        }
+        
+        public void removeOutboxListener(OutboxListener listener) {
+            outboxListeners.remove(listener);
+        }
+        
+        /**
+         * Fetches every class with messages, most recently active first.
+         */
+        public RequestHandle fetchClasses(Activity activity, ZephyrCallback<ZephyrClass[]> callback) {
+            return this.fetchClasses(activity, 0, -1, callback);
+        }
+        
+        /**
+         * Fetches a page of the classes with messages, most recently active
+         * first.
+         * @param offset  The number of classes to skip
+         * @param perpage The maximum number of classes to fetch, or -1 to
+         *                fetch all classes after offset
+         */
+        public RequestHandle fetchClasses(Activity activity, int offset, int perpage,
+                                          ZephyrCallback<ZephyrClass[]> callback) {
+            
+            RequestHandle handle = newFetch(activity);
+            xmlRpcClient.callAsync(activity, handle,
+                                   new ClassesCallback("ZephyrBinder#fetchClasses", handle, callback),
+                                   "messenger.getClasses", offset, perpage);
+            return handle;
+        }
+        
+        /**
+         * Fetches a page of the classes with unread messages, most recently
+         * active first. The total count of each class is not known, and is
+         * reported as its unread count.
+         * @param offset  The number of classes to skip
+         * @param perpage The maximum number of classes to fetch, or -1 to
+         *                fetch all classes after offset
+         */
+        public RequestHandle fetchUnreadClasses(Activity activity, int offset, int perpage,
+                                                ZephyrCallback<ZephyrClass[]> callback) {
+            
+            RequestHandle handle = newFetch(activity);
+            xmlRpcClient.callAsync(activity, handle,
+                                   new ClassesCallback("ZephyrBinder#fetchUnreadClasses", handle, callback),
+                                   "messenger.getUnreadClasses", offset, perpage);
+            return handle;
+        }
+        
+        /**
+         * Fetches a page of the classes with messages, none of which are
+         * unread, most recently active first. Fetching unread classes with
+         * fetchUnreadClasses and then these fetches each class exactly once,
+         * so the unread classes can be shown before the rest are fetched.
+         * @param offset  The number of classes to skip
+         * @param perpage The maximum number of classes to fetch, or -1 to
+         *                fetch all classes after offset
+         */
+        public RequestHandle fetchReadClasses(Activity activity, int offset, int perpage,
+                                              ZephyrCallback<ZephyrClass[]> callback) {
             
-            xmlRpcClient.callAsync(activity, personalsCallback,
-                                   "messenger.getPersonals");
+            RequestHandle handle = newFetch(activity);
+            xmlRpcClient.callAsync(activity, handle,
+                                   new ClassesCallback("ZephyrBinder#fetchReadClasses", handle, callback),
+                                   "messenger.getReadClasses", offset, perpage);
+            return handle;
         }
         
-        public void fetchZephyrgrams(final Activity activity, final IQuery query,
-                                     final ZephyrCallback<ZephyrgramResultSet> callback) {
-            this.fetchFilterId(activity, query, new ZephyrCallback<String>() {
+        /**
+         * Fetches every instance with messages in the given class, most
+         * recently active first.
+         */
+        public RequestHandle fetchInstances(Activity activity, String cls,
+                                            ZephyrCallback<ZephyrInstance[]> callback) {
+            
+            return this.fetchInstances(activity, cls, 0, -1, callback);
+        }
+        
+        /**
+         * Fetches a page of the instances with messages in the given class,
+         * most recently active first.
+         * @param offset  The number of instances to skip
+         * @param perpage The maximum number of instances to fetch, or -1 to
+         *                fetch all instances after offset
+         */
+        public RequestHandle fetchInstances(Activity activity, String cls, int offset,
+                                            int perpage, ZephyrCallback<ZephyrInstance[]> callback) {
+            
+            RequestHandle handle = newFetch(activity);
+            xmlRpcClient.callAsync(activity, handle,
+                                   new InstancesCallback("ZephyrBinder#fetchInstances", cls, handle, callback),
+                                   "messenger.getInstances", cls, offset, perpage);
+            return handle;
+        }
+        
+        /**
+         * Fetches a page of the instances with unread messages in the given
+         * class, most recently active first. The total count of each
+         * instance is not known, and is reported as its unread count.
+         * @param offset  The number of instances to skip
+         * @param perpage The maximum number of instances to fetch, or -1 to
+         *                fetch all instances after offset
+         */
+        public RequestHandle fetchUnreadInstances(Activity activity, String cls, int offset,
+                                                  int perpage, ZephyrCallback<ZephyrInstance[]> callback) {
+            
+            RequestHandle handle = newFetch(activity);
+            xmlRpcClient.callAsync(activity, handle,
+                                   new InstancesCallback("ZephyrBinder#fetchUnreadInstances", cls, handle, callback),
+                                   "messenger.getUnreadInstances", cls, offset, perpage);
+            return handle;
+        }
+        
+        /**
+         * Fetches every user we've exchanged personals with, most recently
+         * active first.
+         */
+        public RequestHandle fetchPersonals(Activity activity, ZephyrCallback<ZephyrPersonals[]> callback) {
+            return this.fetchPersonals(activity, 0, -1, callback);
+        }
+        
+        /**
+         * Fetches a page of the users we've exchanged personals with, most
+         * recently active first.
+         * @param offset  The number of users to skip
+         * @param perpage The maximum number of users to fetch, or -1 to
+         *                fetch all users after offset
+         */
+        public RequestHandle fetchPersonals(Activity activity, int offset, int perpage,
+                                            ZephyrCallback<ZephyrPersonals[]> callback) {
+            
+            RequestHandle handle = newFetch(activity);
+            xmlRpcClient.callAsync(activity, handle,
+                                   new PersonalsCallback("ZephyrBinder#fetchPersonals", handle, callback),
+                                   "messenger.getPersonals", offset, perpage);
+            return handle;
+        }
+        
+        /**
+         * Fetches a page of the users we've exchanged personals with that
+         * have unread personals, most recently active first.
+         * @param offset  The number of users to skip
+         * @param perpage The maximum number of users to fetch, or -1 to
+         *                fetch all users after offset
+         */
+        public RequestHandle fetchUnreadPersonals(Activity activity, int offset, int perpage,
+                                                  ZephyrCallback<ZephyrPersonals[]> callback) {
+            
+            RequestHandle handle = newFetch(activity);
+            xmlRpcClient.callAsync(activity, handle,
+                                   new PersonalsCallback("ZephyrBinder#fetchUnreadPersonals", handle, callback),
+                                   "messenger.getUnreadPersonals", offset, perpage);
+            return handle;
+        }
+        
+        public RequestHandle fetchZephyrgrams(Activity activity, IQuery rawQuery,
+                                              ZephyrCallback<ZephyrgramResultSet> callback) {
+            
+            RequestHandle handle = newFetch(activity);
+            this.fetchZephyrgrams(activity, handle, rawQuery, handle.guard(callback));
+            return handle;
+        }
+        
+        private void fetchZephyrgrams(final Activity activity, final RequestHandle handle,
+                                      IQuery rawQuery,
+                                      final ZephyrCallback<ZephyrgramResultSet> callback) {
+            
+            final IQuery query = QueryNormalizer.normalize(rawQuery);
+            
+            // answer from memory if a cached query's results contain these.
+            // The result set doesn't have a filter ID yet; one is fetched
+            // when it's needed.
+            final List<Zephyrgram> cached = cache.get(query);
+            if(cached != null) {
+                // we may be on the UI thread
+                DecodeExecutor.execute(new Runnable() {
+                    public void run() {
+                        callback.run(startingPage(query, null, cached));
+                    }
+                });
+                return;
+            }
+            
+            this.fetchFilterId(activity, handle, query, new ZephyrCallback<String>() {
 
                 public void run(String filterId) {
-                    ZephyrBinder.this.fetchStartingPage(activity, query, filterId,
+                    ZephyrBinder.this.fetchStartingPage(activity, handle, query, filterId,
                                                         callback);
                 }
 
@@ -236,9 +437,19 @@ public class ZephyrService extends Service {
             });
         }
         
-        private void fetchFilterId(Activity activity, IQuery query, 
+        private void fetchFilterId(Activity activity, RequestHandle handle, IQuery rawQuery,
                                    final ZephyrCallback<String> callback) {
             
+            // equivalent queries normalize to the same query, so they share
+            // a filter
+            final IQuery query = QueryNormalizer.normalize(rawQuery);
+            
+            String cachedFilterId = filterIds.get(query);
+            if(cachedFilterId != null) {
+                callback.run(cachedFilterId);
+                return;
+            }
+            
             XMLRPCCallback filterCallback = new XMLRPCCallback() {
                 public void onResponse(long id, Object response) {
                     String filterId;
@@ -250,6 +461,8 @@ public class ZephyrService extends Service {
                         return;
                     }
                     
+                    filterIds.put(query, filterId);
+                    
                     // return result set for first page
                     callback.run(filterId);
                 }
@@ -275,7 +488,7 @@ public class ZephyrService extends Service {
                 clauseMaps[i] = this.makeFilterMap(clauses[i]);
             }
             
-            xmlRpcClient.callAsync(activity, filterCallback,
+            xmlRpcClient.callAsync(activity, handle, filterCallback,
                                    "messenger.filterMessages", clauseMaps);
         }
         
@@ -307,40 +520,106 @@ public class ZephyrService extends Service {
             return filters;
         }
         
-        public void fetchPrevPage(Activity activity, ZephyrgramResultSet resultSet,
-                                  ZephyrCallback<ZephyrgramResultSet> callback) {
+        // calls the callback with the result set's filter ID, fetching one if
+        // the result set was answered from the cache
+        private void fetchFilterId(Activity activity, RequestHandle handle,
+                                   ZephyrgramResultSet resultSet, ZephyrCallback<String> callback) {
+            if(resultSet.getFilterId() != null) {
+                callback.run(resultSet.getFilterId());
+            }
+            else {
+                this.fetchFilterId(activity, handle, resultSet.getQuery(), callback);
+            }
+        }
+        
+        // builds the page that starts with the oldest unread message, or the
+        // page of the most recent messages if all messages are read, from
+        // every message that matches the query, like fetchStartingPage does
+        private ZephyrgramResultSet startingPage(IQuery query, String filterId,
+                                                 List<Zephyrgram> all) {
+            int total = all.size();
+            int offset = -1;
+            
+            for(int i = 0; i < total; i++) {
+                if(!all.get(i).isRead()) {
+                    offset = i;
+                    break;
+                }
+            }
+            
+            if(offset < 0) {
+                offset = Math.max(0, total - ZEPHYRGRAMS_PER_PAGE);
+            }
+            
+            int end = Math.min(offset + ZEPHYRGRAMS_PER_PAGE, total);
+            return new ZephyrgramResultSet(query, filterId, offset,
+                                           all.subList(offset, end));
+        }
+        
+        public RequestHandle fetchPrevPage(Activity activity, final ZephyrgramResultSet resultSet,
+                                           ZephyrCallback<ZephyrgramResultSet> callback) {
+            RequestHandle handle = newFetch(activity);
+            final ZephyrCallback<ZephyrgramResultSet> guarded = handle.guard(callback);
+            
             if (resultSet.getOffset() == 0) {
                 // if we're at the start, return an empty result
-                callback.run(new ZephyrgramResultSet(resultSet.getQuery(),
-                                                     resultSet.getFilterId(),
-                                                     0,
-                                                     new ArrayList<Zephyrgram>()));
+                DecodeExecutor.execute(new Runnable() {
+                    public void run() {
+                        guarded.run(new ZephyrgramResultSet(resultSet.getQuery(),
+                                                            resultSet.getFilterId(),
+                                                            0,
+                                                            new ArrayList<Zephyrgram>()));
+                    }
+                });
                 
-                return;
+                return handle;
             }
             
             int perPage = Math.min(ZEPHYRGRAMS_PER_PAGE, resultSet.getOffset());
             
-            this.fetchPage(activity, resultSet.getQuery(), resultSet.getFilterId(),
+            this.fetchPage(activity, handle, resultSet,
                            Math.max(0, resultSet.getOffset()- ZEPHYRGRAMS_PER_PAGE),
-                           perPage, callback);
+                           perPage, guarded);
+            return handle;
         }
         
-        public void fetchNextPage(Activity activity, ZephyrgramResultSet resultSet,
-                                  ZephyrCallback<ZephyrgramResultSet> callback) {
+        public RequestHandle fetchNextPage(Activity activity, ZephyrgramResultSet resultSet,
+                                           ZephyrCallback<ZephyrgramResultSet> callback) {
             Log.i("ZephyrService offset", ""+resultSet.getOffset());
             Log.i("ZephyrService pageLength", ""+resultSet.getPageLength());
             Log.i("ZephyrService per page", ""+ZEPHYRGRAMS_PER_PAGE);
             
-            this.fetchPage(activity, resultSet.getQuery(), resultSet.getFilterId(),
+            RequestHandle handle = newFetch(activity);
+            this.fetchPage(activity, handle, resultSet,
                            resultSet.getOffset() + resultSet.getPageLength(),
-                           ZEPHYRGRAMS_PER_PAGE, callback);
+                           ZEPHYRGRAMS_PER_PAGE, handle.guard(callback));
+            return handle;
+        }
+        
+        // fetches another page of the same results as resultSet
+        private void fetchPage(final Activity activity, final RequestHandle handle,
+                               final ZephyrgramResultSet resultSet,
+                               final int offset, final int pageLength,
+                               final ZephyrCallback<ZephyrgramResultSet> callback) {
+            
+            this.fetchFilterId(activity, handle, resultSet, new ZephyrCallback<String>() {
+                public void run(String filterId) {
+                    fetchPage(activity, handle, resultSet.getQuery(), filterId, offset,
+                              pageLength, callback);
+                }
+                
+                public void onError(Exception e) {
+                    Log.e("ZephyrBinder#fetchPage", "onError", e);
+                    callback.onError(e);
+                }
+            });
         }
         
         // gets either the page that starts with the most recent
         // unread message, or the page of most recent message if all messages
         // are read
-        private void fetchStartingPage(final Activity activity, 
+        private void fetchStartingPage(final Activity activity,
+                                       final RequestHandle handle,
                                        final IQuery query,
                                        final String filterId,
                                        final ZephyrCallback<ZephyrgramResultSet> callback) {
@@ -350,14 +629,30 @@ public class ZephyrService extends Service {
                     int offset = (Integer) resultArray[0];
                     int total = (Integer) resultArray[1];
                     
-                    if (offset < 0) {
+                    if (total <= FULL_FETCH_LIMIT) {
+                        // small enough to fetch everything, so queries it
+                        // contains can be answered from the cache
+                        fetchPage(activity, handle, query, filterId, 0, -1,
+                                  new ZephyrCallback<ZephyrgramResultSet>() {
+                            public void run(ZephyrgramResultSet all) {
+                                List<Zephyrgram> zephyrgrams = all.getZephyrgrams();
+                                cache.put(query, zephyrgrams);
+                                callback.run(startingPage(query, filterId, zephyrgrams));
+                            }
+                            
+                            public void onError(Exception e) {
+                                callback.onError(e);
+                            }
+                        });
+                    }
+                    else if (offset < 0) {
                         // fetch page of most recent
-                        fetchPage(activity, query, filterId,
+                        fetchPage(activity, handle, query, filterId,
                                   Math.max(0, total - ZEPHYRGRAMS_PER_PAGE),
                                   ZEPHYRGRAMS_PER_PAGE, callback);
                     }
                     else {
-                        fetchPage(activity, query, filterId, offset,
+                        fetchPage(activity, handle, query, filterId, offset,
                                   ZEPHYRGRAMS_PER_PAGE, callback);
                     }
                 }
@@ -370,15 +665,17 @@ public class ZephyrService extends Service {
                 public void onServerError(long id, XMLRPCServerException error) {
                     Log.e("ZephyrBinder#requestPage",
                           "xmlrpc server exception", error);
+                    forgetFilterId(filterId);
                     callback.onError(error);
                 }
             };
             
-            xmlRpcClient.callAsync(activity, offsetCallback,
+            xmlRpcClient.callAsync(activity, handle, offsetCallback,
                                    "messenger.getOldestUnreadOffset", filterId);
         }
         
-        private void fetchPage(Activity activity, 
+        private void fetchPage(Activity activity,
+                               final RequestHandle handle,
                                final IQuery query,
                                final String filterId,
                                final int offset,
@@ -386,8 +683,20 @@ public class ZephyrService extends Service {
                                final ZephyrCallback<ZephyrgramResultSet> callback) {
             
             XMLRPCCallback zephyrgramCallback = new XMLRPCCallback() {
+                public void onResponse(long id, final Object response) {
+                    DecodeExecutor.execute(new Runnable() {
+                        public void run() {
+                            // cancelled while waiting to be decoded
+                            if(!handle.isCancelled()) {
+                                decode(response);
+                            }
+                        }
+                    });
+                }
+                
                 @SuppressWarnings("unchecked")
-                public void onResponse(long id, Object response) {
+                private void decode(Object response) {
+                    long start = Metrics.now();
                     Object[] messages;
                     
                     Map<String, Object> responseMap = (Map<String, Object>) response;
@@ -404,6 +713,7 @@ public class ZephyrService extends Service {
                     
                     for (Object messageObj : messages) {
                         Map<String, Object> message = (Map<String, Object>) messageObj;
+                        int messageId = (Integer) message.get("id");
                         String cls = (String) message.get("cls");
                         String instance = (String) message.get("instance");
                         String body = TextWrapper.unwrap((String) message.get("message"));
@@ -412,15 +722,19 @@ public class ZephyrService extends Service {
                         Boolean read = (Boolean) message.get("read");
                         Date timestamp = (Date) message.get("timestamp");
                         
-                        zephyrgrams.add(new Zephyrgram(cls, instance, sender,
+                        zephyrgrams.add(new Zephyrgram(messageId, cls, instance, sender,
                                                        timestamp, read, user,
                                                        body));
                     }
                     
+                    // index them for on-device search
+                    SearchIndex.getInstance(ZephyrService.this).addAsync(zephyrgrams);
+                    
                     ZephyrgramResultSet results = new ZephyrgramResultSet(query,
                                                                           filterId,
                                                                           offset,
                                                                           zephyrgrams);
+                    Metrics.time("ZephyrBinder#requestPage", Metrics.Timer.DECODE, start);
                     callback.run(results);
                 }
                 
@@ -432,16 +746,20 @@ public class ZephyrService extends Service {
                 public void onServerError(long id, XMLRPCServerException error) {
                     Log.e("ZephyrBinder#requestPage",
                           "xmlrpc server exception", error);
+                    forgetFilterId(filterId);
                     callback.onError(error);
                 }
             };
             
-            xmlRpcClient.callAsync(activity, zephyrgramCallback, "messenger.get",
+            xmlRpcClient.callAsync(activity, handle, zephyrgramCallback, "messenger.get",
                                    filterId, offset, pageLength);
         }
         
-        public void starClass(Activity activity, final String cls,
-                              final ZephyrStatusCallback callback) {
+        public RequestHandle starClass(Activity activity, final String cls,
+                                       ZephyrStatusCallback statusCallback) {
+            final RequestHandle handle = new RequestHandle();
+            final ZephyrStatusCallback callback = handle.guard(statusCallback);
+            
             XMLRPCCallback starCallback = new XMLRPCCallback() {
                 public void onResponse(long id, Object result) {
                     boolean response = (Boolean) result;
@@ -466,12 +784,16 @@ public class ZephyrService extends Service {
                 }
             };
             
-            xmlRpcClient.callAsync(activity, starCallback,
+            xmlRpcClient.callAsync(activity, handle, starCallback,
                                    "preferences.starClass", cls);
+            return handle;
         }
         
-        public void unstarClass(Activity activity, final String cls,
-                                final ZephyrStatusCallback callback) {
+        public RequestHandle unstarClass(Activity activity, final String cls,
+                                         ZephyrStatusCallback statusCallback) {
+            final RequestHandle handle = new RequestHandle();
+            final ZephyrStatusCallback callback = handle.guard(statusCallback);
+            
             XMLRPCCallback unstarCallback = new XMLRPCCallback() {
                 public void onResponse(long id, Object result) {
                     boolean response = (Boolean) result;
@@ -496,12 +818,16 @@ public class ZephyrService extends Service {
                 }
             };
             
-            xmlRpcClient.callAsync(activity, unstarCallback,
+            xmlRpcClient.callAsync(activity, handle, unstarCallback,
                                    "preferences.unstarClass", cls);
+            return handle;
         }
         
-        public void hideClass(Activity activity, final String cls,
-                              final ZephyrStatusCallback callback) {
+        public RequestHandle hideClass(Activity activity, final String cls,
+                                       ZephyrStatusCallback statusCallback) {
+            final RequestHandle handle = new RequestHandle();
+            final ZephyrStatusCallback callback = handle.guard(statusCallback);
+            
             XMLRPCCallback hideCallback = new XMLRPCCallback() {
                 public void onResponse(long id, Object result) {
                     boolean response = (Boolean) result;
@@ -526,12 +852,16 @@ public class ZephyrService extends Service {
                 }
             };
             
-            xmlRpcClient.callAsync(activity, hideCallback,
+            xmlRpcClient.callAsync(activity, handle, hideCallback,
                                    "preferences.hideClass", cls);
+            return handle;
         }
         
-        public void clearHiddenClasses(Activity activity,
-                                       final ZephyrStatusCallback callback) {
+        public RequestHandle clearHiddenClasses(Activity activity,
+                                                ZephyrStatusCallback statusCallback) {
+            final RequestHandle handle = new RequestHandle();
+            final ZephyrStatusCallback callback = handle.guard(statusCallback);
+            
             XMLRPCCallback hideCallback = new XMLRPCCallback() {
                 public void onResponse(long id, Object result) {
                     boolean response = (Boolean) result;
@@ -556,25 +886,66 @@ public class ZephyrService extends Service {
                 }
             };
             
-            xmlRpcClient.callAsync(activity, hideCallback,
+            xmlRpcClient.callAsync(activity, handle, hideCallback,
                                    "preferences.setHiddenClasses", new Object[]{new String[]{}});
+            return handle;
         }
         
-        public void markRead(Activity activity, ZephyrgramResultSet resultSet,
-                             final ZephyrStatusCallback callback) {
+        public RequestHandle markRead(final Activity activity, final ZephyrgramResultSet resultSet,
+                                      ZephyrStatusCallback statusCallback) {
+            final RequestHandle handle = new RequestHandle();
+            final ZephyrStatusCallback callback = handle.guard(statusCallback);
             
-            this.markFilterRead(activity, resultSet.getFilterId(),
-                                resultSet.getOffset(), resultSet.getPageLength(),
-                                callback);
+            this.fetchFilterId(activity, handle, resultSet, new ZephyrCallback<String>() {
+                public void run(String filterId) {
+                    markFilterRead(activity, handle, filterId, resultSet.getOffset(),
+                                   resultSet.getPageLength(),
+                                   new ZephyrStatusCallback() {
+                        public void onSuccess() {
+                            cache.markRead(resultSet.getZephyrgrams());
+                            callback.onSuccess();
+                        }
+                        
+                        public void onFailure() {
+                            callback.onFailure();
+                        }
+                        
+                        public void onError(Exception e) {
+                            callback.onError(e);
+                        }
+                    });
+                }
+                
+                public void onError(Exception e) {
+                    Log.e("ZephyrBinder#markRead", "onError", e);
+                    callback.onError(e);
+                }
+            });
+            return handle;
         }
         
-        public void markRead(final Activity activity, IQuery query,
-                             final ZephyrStatusCallback callback) {
+        public RequestHandle markRead(final Activity activity, final IQuery query,
+                                      ZephyrStatusCallback statusCallback) {
+            final RequestHandle handle = new RequestHandle();
+            final ZephyrStatusCallback callback = handle.guard(statusCallback);
             
-            this.fetchFilterId(activity, query, new ZephyrCallback<String>() {
+            this.fetchFilterId(activity, handle, query, new ZephyrCallback<String>() {
 
                 public void run(String filterId) {
-                    markFilterRead(activity, filterId, 0, -1, callback);
+                    markFilterRead(activity, handle, filterId, 0, -1, new ZephyrStatusCallback() {
+                        public void onSuccess() {
+                            cache.markRead(query);
+                            callback.onSuccess();
+                        }
+                        
+                        public void onFailure() {
+                            callback.onFailure();
+                        }
+                        
+                        public void onError(Exception e) {
+                            callback.onError(e);
+                        }
+                    });
                 }
 
                 public void onError(Exception e) {
@@ -583,10 +954,11 @@ public class ZephyrService extends Service {
                 }
                 
             });
+            return handle;
         }
         
-        private void markFilterRead(Activity activity, String filterId, int offset, int limit,
-                                    final ZephyrStatusCallback callback) {
+        private void markFilterRead(Activity activity, RequestHandle handle, final String filterId,
+                                    int offset, int limit, final ZephyrStatusCallback callback) {
             XMLRPCCallback markCallback = new XMLRPCCallback() {
                 public void onResponse(long id, Object result) {
                     @SuppressWarnings("unused")
@@ -602,15 +974,19 @@ public class ZephyrService extends Service {
                 public void onServerError(long id, XMLRPCServerException error) {
                     Log.e("ZephyrBinder#markRead", "xmlrpc server exception",
                           error);
+                    forgetFilterId(filterId);
                     callback.onError(error);
                 }
             };
             
-            xmlRpcClient.callAsync(activity, markCallback, "messenger.markFilterRead",
+            xmlRpcClient.callAsync(activity, handle, markCallback, "messenger.markFilterRead",
                                    filterId, offset, limit);
         }
         
-        public void ping(Activity activity, final ZephyrStatusCallback callback) {
+        public RequestHandle ping(Activity activity, ZephyrStatusCallback statusCallback) {
+            final RequestHandle handle = new RequestHandle();
+            final ZephyrStatusCallback callback = handle.guard(statusCallback);
+            
             XMLRPCCallback pingCallback = new XMLRPCCallback() {
                 public void onServerError(long id, XMLRPCServerException error) {
                     Log.e("ZephyrBinder#ping", "got onServerError", error);
@@ -633,7 +1009,8 @@ public class ZephyrService extends Service {
                 }
             };
             
-            xmlRpcClient.callAsync(activity, pingCallback, "ping");
+            xmlRpcClient.callAsync(activity, handle, pingCallback, "ping");
+            return handle;
         }
     }
     
@@ -641,6 +1018,11 @@ public class ZephyrService extends Service {
     public void onCreate() {
         ZephyrService.isRunning = true;
         this.xmlRpcClient = new XMLRPCHelper();
+        this.outbox = new Outbox(getFilesDir());
+        
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        Metrics.setEnabled(prefs.getBoolean(getString(R.string.pref_metrics), false));
+        prefs.registerOnSharedPreferenceChangeListener(this.prefsListener);
     }
     
     @Override
@@ -654,7 +1036,10 @@ public class ZephyrService extends Service {
     
     @Override
     public void onDestroy() {
+        PreferenceManager.getDefaultSharedPreferences(this)
+                         .unregisterOnSharedPreferenceChangeListener(this.prefsListener);
         ZephyrService.isRunning = false;
+        this.outboxScheduler.shutdownNow();
     }
     
     @Override
@@ -662,7 +1047,375 @@ public class ZephyrService extends Service {
         return binder;
     }
     
+    // adb shell dumpsys activity service ZephyrService [trace]
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if(args != null && args.length > 0 && args[0].equals("trace")) {
+            writer.print(Tracer.toJson());
+        }
+        else {
+            writer.print(Metrics.report());
+        }
+    }
+    
     public static boolean isRunning() {
         return ZephyrService.isRunning;
     }
+    
+    /**
+     * Remembers an Activity to send the outbox with, and sends anything that
+     * was waiting for one. XMLRPCHelper needs an Activity for every request,
+     * so the outbox is only flushed while the user has one open.
+     */
+    private synchronized void useActivity(Activity activity) {
+        this.forgetActivity(activity);
+        this.outboxActivities.add(new WeakReference<Activity>(activity));
+        this.flushOutbox(false);
+    }
+    
+    private synchronized void forgetActivity(Activity activity) {
+        for(Iterator<WeakReference<Activity>> i = this.outboxActivities.iterator(); i.hasNext();) {
+            Activity used = i.next().get();
+            if(used == null || used == activity) {
+                i.remove();
+            }
+        }
+    }
+    
+    /**
+     * Returns the most recently used Activity that isn't finishing (e.g. not
+     * a ComposeActivity that has just queued its zephyrgrams), or null
+     */
+    private synchronized Activity getOutboxActivity() {
+        for(int i = this.outboxActivities.size() - 1; i >= 0; i--) {
+            Activity activity = this.outboxActivities.get(i).get();
+            if(activity != null && !activity.isFinishing()) {
+                return activity;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Sends everything in the outbox, oldest first, unless it's already
+     * being sent. If a send failed and we're waiting to retry, this waits
+     * for the retry unless retryNow is set.
+     */
+    private synchronized void flushOutbox(boolean retryNow) {
+        if(this.retry != null) {
+            if(!retryNow) {
+                return;
+            }
+            this.retry.cancel(false);
+            this.retry = null;
+        }
+        
+        if(this.flushing || this.outbox.isEmpty()) {
+            return;
+        }
+        
+        final Activity activity = this.getOutboxActivity();
+        if(activity == null) {
+            // flushed when an Activity next uses the binder
+            return;
+        }
+        
+        this.flushing = true;
+        
+        // wrapping long bodies isn't free, so build the request off the
+        // caller's thread
+        this.outboxScheduler.execute(new Runnable() {
+            public void run() {
+                sendBatch(activity);
+            }
+        });
+    }
+    
+    // sends the oldest MAX_BATCH_SIZE zephyrgrams in the outbox in one
+    // messenger.sendAll request
+    private void sendBatch(final Activity activity) {
+        List<Zephyrgram> queued = this.outbox.getAll();
+        final List<Zephyrgram> batch =
+            new ArrayList<Zephyrgram>(queued.subList(0, Math.min(queued.size(), MAX_BATCH_SIZE)));
+        
+        Object[] messages = new Object[batch.size()];
+        for(int i = 0; i < messages.length; i++) {
+            Zephyrgram zephyrgram = batch.get(i);
+            Map<String, Object> message = new HashMap<String, Object>();
+            
+            message.put("message", TextWrapper.wrap(zephyrgram.getBody()));
+            message.put("cls", zephyrgram.getCls());
+            message.put("instance", zephyrgram.getInstance());
+            if(zephyrgram.getUser() != null) {
+                message.put("user", zephyrgram.getUser());
+            }
+            
+            messages[i] = message;
+        }
+        
+        XMLRPCCallback sendCallback = new XMLRPCCallback() {
+            public void onResponse(long id, Object result) {
+                int rejected = 0;
+                try {
+                    Object[] statuses = (Object[]) result;
+                    if(statuses.length != batch.size()) {
+                        throw new ClassCastException("expected " + batch.size() +
+                                                     " statuses, got " + statuses.length);
+                    }
+                    
+                    for(Object status : statuses) {
+                        if(!Boolean.TRUE.equals(status)) {
+                            rejected++;
+                        }
+                    }
+                }
+                catch (ClassCastException e) {
+                    Log.e("ZephyrService#sendBatch", "malformed response", e);
+                    finishBatch(Collections.<Zephyrgram>emptyList(), false);
+                    return;
+                }
+                
+                // retrying the rejected ones won't help, so drop them too
+                if(rejected > 0) {
+                    Log.w("ZephyrService#sendBatch", "server didn't send " + rejected + " zephyrgrams");
+                    showSendToast(R.string.send_fail_toast);
+                }
+                else {
+                    showSendToast(R.string.send_success_toast);
+                }
+                
+                finishBatch(batch, true);
+            }
+            
+            public void onError(long id, XMLRPCException error) {
+                Log.e("ZephyrService#sendBatch", "xmlrpc exception", error);
+                finishBatch(Collections.<Zephyrgram>emptyList(), false);
+            }
+            
+            public void onServerError(long id, XMLRPCServerException error) {
+                // sendAll reports per-message failures in its response, so
+                // this isn't about any one zephyrgram; keep them all
+                Log.e("ZephyrService#sendBatch", "xmlrpc server exception", error);
+                finishBatch(Collections.<Zephyrgram>emptyList(), false);
+            }
+        };
+        
+        // messages is a single argument, so don't let it be spread into
+        // varargs
+        xmlRpcClient.callAsync(activity, sendCallback, "messenger.sendAll",
+                               (Object) messages);
+    }
+    
+    private void finishBatch(List<Zephyrgram> done, boolean succeeded) {
+        this.outbox.removeAll(done);
+        
+        if(!done.isEmpty()) {
+            // the sent zephyrgrams may belong in cached results
+            this.cache.clear();
+            this.notifyOutboxListeners();
+        }
+        
+        synchronized(this) {
+            this.flushing = false;
+            
+            if(succeeded) {
+                this.retryDelayMs = MIN_RETRY_DELAY_MS;
+                
+                // send anything queued while this batch was in flight
+                this.flushOutbox(false);
+            }
+            else {
+                this.retry = this.outboxScheduler.schedule(new Runnable() {
+                    public void run() {
+                        synchronized(ZephyrService.this) {
+                            retry = null;
+                        }
+                        flushOutbox(false);
+                    }
+                }, this.retryDelayMs, TimeUnit.MILLISECONDS);
+                
+                this.retryDelayMs = Math.min(this.retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+            }
+        }
+    }
+    
+    private void notifyOutboxListeners() {
+        for(OutboxListener listener : this.outboxListeners) {
+            listener.onOutboxChanged();
+        }
+    }
+    
+    // shows how a batch went on whichever Activity the user is in now, since
+    // the one the batch was sent with may have gone
+    private void showSendToast(final int messageId) {
+        final Activity activity = this.getOutboxActivity();
+        if(activity == null) {
+            return;
+        }
+        
+        activity.runOnUiThread(new Runnable() {
+            public void run() {
+                Toast.makeText(activity, activity.getString(messageId),
+                               Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+    
+    /**
+     * Forgets a cached filter ID after the server rejects it, e.g. because
+     * zserv restarted and lost its filters, so the next request for its
+     * query creates a new filter.
+     */
+    private void forgetFilterId(String filterId) {
+        this.filterIds.values().removeAll(Collections.singleton(filterId));
+    }
+    
+    /**
+     * An XMLRPCCallback that decodes the response on the decode stage (see
+     * DecodeExecutor) and passes it to a ZephyrCallback. Errors are logged with the given tag and passed on; a
+     * response that can't be decoded is passed on as a
+     * MalformedServerResponseException. Nothing is decoded or passed on once
+     * the request has been cancelled.
+     */
+    private static abstract class DecodingCallback<T> implements XMLRPCCallback {
+        private final String tag;
+        private final RequestHandle handle;
+        private final ZephyrCallback<T> callback;
+        
+        protected DecodingCallback(String tag, RequestHandle handle, ZephyrCallback<T> callback) {
+            this.tag = tag;
+            this.handle = handle;
+            this.callback = handle.guard(callback);
+        }
+        
+        /**
+         * Decodes the server's response.
+         * @throws ClassCastException if the response is malformed
+         */
+        protected abstract T decode(Object response);
+        
+        public void onResponse(long id, final Object response) {
+            DecodeExecutor.execute(new Runnable() {
+                public void run() {
+                    // cancelled while waiting to be decoded
+                    if(handle.isCancelled()) {
+                        return;
+                    }
+                    
+                    long start = Metrics.now();
+                    T result;
+                    try {
+                        result = decode(response);
+                    }
+                    catch (ClassCastException e) {
+                        callback.onError(new MalformedServerResponseException(e));
+                        return;
+                    }
+                    Metrics.time(tag, Metrics.Timer.DECODE, start);
+                    
+                    callback.run(result);
+                }
+            });
+        }
+        
+        public void onError(long id, XMLRPCException error) {
+            Log.e(this.tag, "xmlrpc exception", error);
+            this.callback.onError(error);
+        }
+        
+        public void onServerError(long id, XMLRPCServerException error) {
+            Log.e(this.tag, "xmlrpc server exception", error);
+            this.callback.onError(error);
+        }
+    }
+    
+    private static class ClassesCallback extends DecodingCallback<ZephyrClass[]> {
+        public ClassesCallback(String tag, RequestHandle handle,
+                               ZephyrCallback<ZephyrClass[]> callback) {
+            super(tag, handle, callback);
+        }
+        
+        @Override
+        protected ZephyrClass[] decode(Object response) {
+            Object[] classObjs = (Object[]) response;
+            int length = classObjs.length;
+            
+            ZephyrClass[] classes = new ZephyrClass[length];
+            
+            for (int i = 0; i < length; i++) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> classObj = (Map<String, Object>) classObjs[i];
+                String name = (String) classObj.get("cls");
+                int unreadCount = (Integer) classObj.get("unread");
+                int totalCount = (Integer) classObj.get("total");
+                boolean starred = (Boolean) classObj.get("starred");
+                boolean hidden = (Boolean) classObj.get("hidden");
+                
+                classes[i] = new ZephyrClass(name, unreadCount,
+                                             totalCount, starred,
+                                             hidden);
+            }
+            
+            return classes;
+        }
+    }
+    
+    private static class InstancesCallback extends DecodingCallback<ZephyrInstance[]> {
+        private final String cls;
+        
+        public InstancesCallback(String tag, String cls, RequestHandle handle,
+                                 ZephyrCallback<ZephyrInstance[]> callback) {
+            super(tag, handle, callback);
+            this.cls = cls;
+        }
+        
+        @Override
+        protected ZephyrInstance[] decode(Object response) {
+            Object[] instanceObjs = (Object[]) response;
+            int length = instanceObjs.length;
+            
+            ZephyrInstance[] instances = new ZephyrInstance[length];
+            
+            for (int i = 0; i < length; i++) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> instanceObj = (Map<String, Object>) instanceObjs[i];
+                String name = (String) instanceObj.get("instance");
+                int unreadCount = (Integer) instanceObj.get("unread");
+                int totalCount = (Integer) instanceObj.get("total");
+                
+                instances[i] = new ZephyrInstance(this.cls, name,
+                                                  unreadCount,
+                                                  totalCount);
+            }
+            
+            return instances;
+        }
+    }
+    
+    private static class PersonalsCallback extends DecodingCallback<ZephyrPersonals[]> {
+        public PersonalsCallback(String tag, RequestHandle handle,
+                                 ZephyrCallback<ZephyrPersonals[]> callback) {
+            super(tag, handle, callback);
+        }
+        
+        @Override
+        protected ZephyrPersonals[] decode(Object response) {
+            Object[] personalsObjs = (Object[]) response;
+            int length = personalsObjs.length;
+            
+            ZephyrPersonals[] personals = new ZephyrPersonals[length];
+            
+            for (int i = 0; i < length; i++) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> personalsObj = (Map<String, Object>) personalsObjs[i];
+                String sender = (String) personalsObj.get("sender");
+                int unreadCount = (Integer) personalsObj.get("unread");
+                int totalCount = (Integer) personalsObj.get("total");
+                
+                personals[i] = new ZephyrPersonals(sender, unreadCount, totalCount);
+            }
+            
+            return personals;
+        }
+    }
 }
@@ -1,14 +1,23 @@
 package com.benweissmann.zmobile.service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import com.benweissmann.zmobile.service.ZephyrService.ZephyrBinder;
 import com.benweissmann.zmobile.service.callbacks.BinderCallback;
+import com.benweissmann.zmobile.util.Tracer;
 
 import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -16,49 +25,151 @@ import android.util.Log;
  * cleanly with long-running services like the ZephyrService, so this provides a
  * nice API.
  * 
- * ZephyrServiceBridge has one public method: getBinder. Call getBinder with
- * your context and a BinderCallback, and ZephyrServiceBridge will either use
- * its existing ZephyrBinder or create a new one and pass it to your callback's
- * run method.
+ * Call getBinder with your activity and a BinderCallback, and
+ * ZephyrServiceBridge will pass a ZephyrBinder to your callback's run method.
+ * The first call for an activity binds to the service; the binding is kept
+ * until the activity calls release (in onDestroy), so later calls get the
+ * same ZephyrBinder right away. Callers that arrive before the service has
+ * connected are queued and run, in order, when it does. Once an activity
+ * has called release, getBinder won't bind it again: its callbacks are
+ * dropped, since nothing would release the new binding.
+ * 
+ * Callbacks are always run on the main thread. getBinder and release should
+ * be called from the main thread.
  * 
  * @author Ben Weissmann <bsw@mit.edu>
  */
 public class ZephyrServiceBridge {
+    private static final Map<Activity, ZephyrServiceConnection> connections =
+        new HashMap<Activity, ZephyrServiceConnection>();
+    
+    // activities that have called release. Weak, so they can still be
+    // collected.
+    private static final Map<Activity, Boolean> released =
+        new WeakHashMap<Activity, Boolean>();
+    
+    private static Handler mainHandler = null;
     
     /**
      * Returns a living ZephyrBinder
      * 
-     * @param context
-     *            Context used to start the ZephyrService if needed
+     * @param activity
+     *            Activity the binding belongs to. It's also used to start
+     *            the ZephyrService if needed.
      * @param callback
      *            Callback to pass the ZephyrBinder to.
      */
-    public static void getBinder(Activity activity, BinderCallback callback) {
-        Intent intent = new Intent(activity, ZephyrService.class);
-        activity.getApplicationContext().startService(intent);
-        activity.bindService(intent,
-                             new ZephyrServiceConnection(callback, activity),
-                             Context.BIND_AUTO_CREATE);
+    public static synchronized void getBinder(Activity activity, BinderCallback callback) {
+        if(released.containsKey(activity)) {
+            // e.g. a callback that finished after the activity was destroyed
+            Log.w("ZephyrServiceBridge", "dropping getBinder for released activity " + activity);
+            return;
+        }
+        
+        ZephyrServiceConnection connection = connections.get(activity);
+        
+        if(connection == null) {
+            connection = new ZephyrServiceConnection(Tracer.begin("ZephyrServiceBridge.getBinder"));
+            connections.put(activity, connection);
+            
+            Intent intent = new Intent(activity, ZephyrService.class);
+            activity.getApplicationContext().startService(intent);
+            activity.bindService(intent, connection, Context.BIND_AUTO_CREATE);
+        }
+        
+        connection.getBinder(callback);
     }
     
-    // ServiceConnection that invokes a Runnable after a service connects
+    /**
+     * Unbinds an activity from the ZephyrService, dropping any callbacks that
+     * are still waiting for it to connect and cancelling the fetches it made
+     * that haven't finished. Call this from onDestroy.
+     */
+    public static synchronized void release(Activity activity) {
+        released.put(activity, Boolean.TRUE);
+        ZephyrServiceConnection connection = connections.remove(activity);
+        
+        if(connection != null) {
+            ZephyrBinder binder = connection.close();
+            if(binder != null) {
+                binder.cancelFetches(activity);
+            }
+            activity.unbindService(connection);
+        }
+    }
+    
+    private static synchronized Handler getMainHandler() {
+        if(mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+    
+    // ServiceConnection that holds on to the ZephyrBinder while the service is
+    // connected, and queues callbacks while it isn't
     private static class ZephyrServiceConnection implements ServiceConnection {
-        private BinderCallback callback;
-        private Context ctx;
+        private ZephyrBinder binder = null;
+        private boolean closed = false;
+        private final List<BinderCallback> waiting = new ArrayList<BinderCallback>();
+        
+        // from binding until the service first connects
+        private final Tracer.Span bindSpan;
+        
+        public ZephyrServiceConnection(Tracer.Span bindSpan) {
+            this.bindSpan = bindSpan;
+        }
+        
+        public synchronized void getBinder(final BinderCallback callback) {
+            if(this.binder == null) {
+                this.waiting.add(callback);
+            }
+            else if(Looper.myLooper() == Looper.getMainLooper()) {
+                callback.run(this.binder);
+            }
+            else {
+                final ZephyrBinder binder = this.binder;
+                getMainHandler().post(new Runnable() {
+                    public void run() {
+                        callback.run(binder);
+                    }
+                });
+            }
+        }
         
-        public ZephyrServiceConnection(BinderCallback callback, Context context) {
-            this.callback = callback;
-            this.ctx = context;
+        // returns the binder, if the service is connected
+        public synchronized ZephyrBinder close() {
+            ZephyrBinder binder = this.binder;
+            this.closed = true;
+            this.binder = null;
+            this.waiting.clear();
+            return binder;
         }
         
         public void onServiceConnected(ComponentName className, IBinder service) {
-            this.callback.run((ZephyrBinder) service);
-            ctx.unbindService(ZephyrServiceConnection.this);
+            this.bindSpan.end();
+            List<BinderCallback> callbacks;
+            
+            synchronized(this) {
+                if(this.closed) {
+                    return;
+                }
+                
+                this.binder = (ZephyrBinder) service;
+                callbacks = new ArrayList<BinderCallback>(this.waiting);
+                this.waiting.clear();
+            }
+            
+            for(BinderCallback callback : callbacks) {
+                callback.run((ZephyrBinder) service);
+            }
         }
         
-        // Called when the connection with the service disconnects unexpectedly
-        public void onServiceDisconnected(ComponentName className) {
+        // Called when the connection with the service disconnects
+        // unexpectedly. Android will reconnect us when the service is
+        // restarted, so queue callbacks until then.
+        public synchronized void onServiceDisconnected(ComponentName className) {
             Log.e("ZephyrServiceBridge", "onServiceDisconnected");
+            this.binder = null;
         }
     };
 }
@@ -0,0 +1,150 @@
+package com.benweissmann.zmobile.service;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import com.benweissmann.zmobile.service.objects.IQuery;
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+import com.benweissmann.zmobile.service.objects.ZephyrgramColumns;
+import com.benweissmann.zmobile.util.QueryMatcher;
+
+import android.os.SystemClock;
+
+/**
+ * Recently fetched, complete query results. A query whose results are
+ * contained in a cached query's results (e.g. an instance of a cached class)
+ * is answered by filtering the cached Zephyrgrams with a QueryMatcher,
+ * without a round trip to the server. Caching a query drops the entries for
+ * any queries it contains, so each Zephyrgram is usually cached once.
+ * 
+ * New Zephyrgrams can arrive at any time, so results are only kept for
+ * MAX_AGE_MS. Results are kept in the order the server returned them
+ * (oldest first), in ZephyrgramColumns, so a cached class of a few thousand
+ * Zephyrgrams is a few arrays.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+class ZephyrgramCache {
+    private static final long MAX_AGE_MS = 30 * 1000;
+    private static final int MAX_ENTRIES = 8;
+    
+    // most recently added first
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    
+    /**
+     * Caches every Zephyrgram that matches a query
+     */
+    public synchronized void put(IQuery query, List<Zephyrgram> zephyrgrams) {
+        QueryMatcher matcher = QueryMatcher.compile(query);
+        
+        // entries for queries this one contains are now redundant
+        Iterator<Entry> it = this.entries.iterator();
+        while(it.hasNext()) {
+            if(matcher.contains(it.next().matcher)) {
+                it.remove();
+            }
+        }
+        
+        this.entries.addFirst(new Entry(matcher, zephyrgrams));
+        
+        while(this.entries.size() > MAX_ENTRIES) {
+            this.entries.removeLast();
+        }
+    }
+    
+    /**
+     * Returns every Zephyrgram that matches the query, oldest first, or null
+     * if the query isn't contained in any cached query.
+     */
+    public synchronized List<Zephyrgram> get(IQuery query) {
+        this.removeExpired();
+        
+        QueryMatcher matcher = QueryMatcher.compile(query);
+        for(Entry entry : this.entries) {
+            if(entry.matcher.contains(matcher)) {
+                return matcher.filter(entry.zephyrgrams);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Marks the given Zephyrgrams as read in every cached result
+     */
+    public synchronized void markRead(List<Zephyrgram> zephyrgrams) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for(Zephyrgram zephyrgram : zephyrgrams) {
+            ids.add(zephyrgram.getId());
+        }
+        
+        for(Entry entry : this.entries) {
+            BitSet read = new BitSet();
+            for(int i = 0; i < entry.zephyrgrams.size(); i++) {
+                if(ids.contains(entry.zephyrgrams.getId(i))) {
+                    read.set(i);
+                }
+            }
+            entry.markRead(read);
+        }
+    }
+    
+    /**
+     * Marks every cached Zephyrgram that matches the query as read
+     */
+    public synchronized void markRead(IQuery query) {
+        QueryMatcher matcher = QueryMatcher.compile(query);
+        
+        for(Entry entry : this.entries) {
+            BitSet read = new BitSet();
+            for(int i = 0; i < entry.zephyrgrams.size(); i++) {
+                if(!entry.zephyrgrams.isRead(i) && matcher.matches(entry.zephyrgrams, i)) {
+                    read.set(i);
+                }
+            }
+            entry.markRead(read);
+        }
+    }
+    
+    /**
+     * Empties the cache, e.g. because a Zephyrgram was sent
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+    
+    private void removeExpired() {
+        long now = SystemClock.elapsedRealtime();
+        
+        Iterator<Entry> it = this.entries.iterator();
+        while(it.hasNext()) {
+            if(now - it.next().fetchedAt > MAX_AGE_MS) {
+                it.remove();
+            }
+        }
+    }
+    
+    private static final class Entry {
+        public final QueryMatcher matcher;
+        public ZephyrgramColumns zephyrgrams;
+        public final long fetchedAt;
+        
+        public Entry(QueryMatcher matcher, List<Zephyrgram> zephyrgrams) {
+            this.matcher = matcher;
+            this.zephyrgrams = ZephyrgramColumns.copyOf(zephyrgrams);
+            this.fetchedAt = SystemClock.elapsedRealtime();
+        }
+        
+        public void markRead(BitSet read) {
+            if(!read.isEmpty()) {
+                this.zephyrgrams = this.zephyrgrams.withRead(read);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.benweissmann.zmobile.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+
+/**
+ * Reads and writes Zephyrgrams in the binary files the service keeps (the
+ * Outbox and the Snapshot).
+ * 
+ * Only the fields the server sends are written. Whether a Zephyrgram is to
+ * or from the user is worked out again when it's read, since the username
+ * may not be known yet.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+final class ZephyrgramCodec {
+    private ZephyrgramCodec() {}
+    
+    public static void writeZephyrgram(DataOutputStream out, Zephyrgram z) throws IOException {
+        out.writeInt(z.getId());
+        writeString(out, z.getCls());
+        writeString(out, z.getInstance());
+        writeString(out, z.getRawSender());
+        out.writeLong(z.getTimeMillis());
+        out.writeBoolean(z.isRead());
+        writeString(out, z.getRawUser());
+        writeString(out, z.getBody());
+    }
+    
+    public static Zephyrgram readZephyrgram(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        String cls = readString(in);
+        String instance = readString(in);
+        String sender = readString(in);
+        long timestamp = in.readLong();
+        boolean read = in.readBoolean();
+        String user = readString(in);
+        String body = readString(in);
+        
+        return new Zephyrgram(id, cls, instance, sender, timestamp, read, user, body);
+    }
+    
+    /**
+     * Writes a string that may be null. Unlike writeUTF, this isn't limited
+     * to 64k, which a long zephyrgram could exceed.
+     */
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) {
+            return null;
+        }
+        
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
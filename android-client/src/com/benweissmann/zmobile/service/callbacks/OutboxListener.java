@@ -0,0 +1,9 @@
+package com.benweissmann.zmobile.service.callbacks;
+
+/**
+ * Notified, on a background thread, when Zephyrgrams are queued to be sent
+ * or leave the outbox because they were sent (or rejected by the server).
+ */
+public interface OutboxListener {
+    public void onOutboxChanged();
+}
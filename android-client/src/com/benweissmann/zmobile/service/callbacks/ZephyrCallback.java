@@ -1,5 +1,13 @@
 package com.benweissmann.zmobile.service.callbacks;
 
+/**
+ * Receives the result of a ZephyrBinder fetch.
+ * 
+ * Threading: run is called on one of the ZephyrService's decode threads with
+ * an immutable result, so it can do further work on the result (e.g.
+ * rendering it) before posting to the UI thread. onError is called on a
+ * background thread. Neither is ever called on the UI thread.
+ */
 public interface ZephyrCallback<T> {
     public void run(T s);
     
@@ -4,6 +4,7 @@ import java.util.Date;
 
 import com.benweissmann.zmobile.auth.AuthHelper;
 import com.benweissmann.zmobile.util.DomainStripper;
+import com.benweissmann.zmobile.util.NamePool;
 
 //TODO: toString, equals, hashCode
 
@@ -16,23 +17,67 @@ public final class Zephyrgram {
     public static final String PERSONALS_CLASS = "message";
     public static final String DEFAULT_INSTANCE = "personal";
     
+    /**
+     * The ID of a Zephyrgram that hasn't been stored by the server, e.g. one
+     * that's being sent.
+     */
+    public static final int NO_ID = -1;
+    
+    private final int id;
     private final String cls;
     private final String instance;
     private final String sender;
-    private final Date timestamp;
+    // milliseconds since the epoch; cheaper to keep and copy than a Date
+    private final long timestamp;
     private final boolean read;
     private final String user;
     private final String body;
+    
+    // FROM_ME and TO_ME bits, computed once since every bind checks them.
+    // They're ME_UNKNOWN until the username has been loaded, and are
+    // computed when they're first needed after that.
+    static final byte FROM_ME = 1;
+    static final byte TO_ME = 2;
+    static final byte ME_UNKNOWN = -1;
+    private byte me;
 
-    public Zephyrgram(String cls, String instance, String sender,
-            Date timestamp, boolean read, String user, String body) {
+    /**
+     * Creates a Zephyrgram. The class, instance, sender and user are taken
+     * from the NamePool, so they can be compared with == (see QueryMatcher).
+     * The timestamp is in milliseconds since the epoch.
+     */
+    public Zephyrgram(int id, String cls, String instance, String sender,
+            long timestamp, boolean read, String user, String body) {
+        this(id, NamePool.intern(cls), NamePool.intern(instance),
+             NamePool.intern(sender), timestamp, read, NamePool.intern(user),
+             body, meFlags(sender, user));
+    }
+    
+    // for names that are already from the NamePool and flags that are
+    // already computed (or ME_UNKNOWN), e.g. ones taken from another
+    // Zephyrgram
+    Zephyrgram(int id, String cls, String instance, String sender,
+            long timestamp, boolean read, String user, String body,
+            byte me) {
+        this.id = id;
         this.cls = cls;
         this.instance = instance;
         this.sender = sender;
-        this.timestamp = (Date) timestamp.clone();
+        this.timestamp = timestamp;
         this.read = read;
         this.user = user;
         this.body = body;
+        this.me = me;
+    }
+    
+    public Zephyrgram(int id, String cls, String instance, String sender,
+            Date timestamp, boolean read, String user, String body) {
+        this(id, cls, instance, sender, timestamp.getTime(), read, user, body);
+    }
+    
+    public Zephyrgram(String cls, String instance, String sender,
+            Date timestamp, boolean read, String user, String body) {
+        this(NO_ID, cls, instance, sender, timestamp, read, user, body);
     }
     
     public Zephyrgram(String cls, String instance, String body) {
@@ -43,16 +88,67 @@ public final class Zephyrgram {
         this(PERSONALS_CLASS, DEFAULT_INSTANCE, null, new Date(), true, user, body);
     }
     
+    /**
+     * Returns a copy of this Zephyrgram that's marked as read
+     */
+    public Zephyrgram asRead() {
+        if(this.read) {
+            return this;
+        }
+        return new Zephyrgram(this.id, this.cls, this.instance, this.sender,
+                              this.timestamp, true, this.user, this.body,
+                              this.getMeFlags());
+    }
+    
+    /**
+     * Returns the server's ID for this Zephyrgram, or NO_ID if it hasn't
+     * been stored by the server.
+     */
+    public int getId() {
+        return id;
+    }
+    
     public boolean isPersonal() {
         return this.cls.equals(PERSONALS_CLASS);
     }
     
+    // returns the FROM_ME and TO_ME bits for an unstripped sender and user,
+    // or ME_UNKNOWN if the username hasn't been loaded yet
+    private static byte meFlags(String sender, String user) {
+        String username = AuthHelper.getUsername();
+        if(username == null) {
+            return ME_UNKNOWN;
+        }
+        
+        byte me = 0;
+        if(sender != null && DomainStripper.stripDomain(sender).equals(username)) {
+            me |= FROM_ME;
+        }
+        if(user != null && DomainStripper.stripDomain(user).equals(username)) {
+            me |= TO_ME;
+        }
+        return me;
+    }
+    
+    // returns the FROM_ME and TO_ME bits, computing them if they weren't
+    // known when this was created. Still ME_UNKNOWN if the username hasn't
+    // been loaded. Racing threads compute the same value, so this needn't
+    // be synchronized.
+    byte getMeFlags() {
+        if(this.me == ME_UNKNOWN) {
+            this.me = meFlags(this.sender, this.user);
+        }
+        return this.me;
+    }
+    
     public boolean isToMe() {
-        return (this.getUser() != null) && this.getUser().equals(AuthHelper.getUsername());
+        byte me = this.getMeFlags();
+        return (me != ME_UNKNOWN) && (me & TO_ME) != 0;
     }
     
     public boolean isFromMe() {
-        return this.getSender().equals(AuthHelper.getUsername());
+        byte me = this.getMeFlags();
+        return (me != ME_UNKNOWN) && (me & FROM_ME) != 0;
     }
     
     public String getCls() {
@@ -75,14 +171,15 @@ public final class Zephyrgram {
     }
 
     public Date getTimestamp() {
-        return (Date) timestamp.clone();
+        return new Date(timestamp);
     }
     
     /**
-     * Returns the time this zephyr was sent in the format hh:mm
+     * Returns the time this zephyr was sent, in milliseconds since the
+     * epoch. Unlike getTimestamp, this doesn't allocate.
      */
-    public String getTime() {
-        return String.format("%02d:%02d", timestamp.getHours(), timestamp.getMinutes());
+    public long getTimeMillis() {
+        return timestamp;
     }
 
     public boolean isRead() {
@@ -106,8 +203,8 @@ public final class Zephyrgram {
 
     @Override
     public String toString() {
-        return "Zephyrgram [cls=" + cls + ", instance=" + instance
-                + ", sender=" + sender + ", timestamp=" + timestamp + ", read="
+        return "Zephyrgram [id=" + id + ", cls=" + cls + ", instance=" + instance
+                + ", sender=" + sender + ", timestamp=" + getTimestamp() + ", read="
                 + read + ", user=" + user + ", body=\"" + body + "\"]";
     }
 
@@ -117,12 +214,12 @@ public final class Zephyrgram {
         int result = 1;
         result = prime * result + ((body == null) ? 0 : body.hashCode());
         result = prime * result + ((cls == null) ? 0 : cls.hashCode());
+        result = prime * result + id;
         result = prime * result
                 + ((instance == null) ? 0 : instance.hashCode());
         result = prime * result + (read ? 1231 : 1237);
         result = prime * result + ((sender == null) ? 0 : sender.hashCode());
-        result = prime * result
-                + ((timestamp == null) ? 0 : timestamp.hashCode());
+        result = prime * result + (int) (timestamp ^ (timestamp >>> 32));
         result = prime * result + ((user == null) ? 0 : user.hashCode());
         return result;
     }
@@ -148,6 +245,8 @@ public final class Zephyrgram {
         }
         else if (!cls.equals(other.cls))
             return false;
+        if (id != other.id)
+            return false;
         if (instance == null) {
             if (other.instance != null)
                 return false;
@@ -162,11 +261,7 @@ public final class Zephyrgram {
         }
         else if (!sender.equals(other.sender))
             return false;
-        if (timestamp == null) {
-            if (other.timestamp != null)
-                return false;
-        }
-        else if (!timestamp.equals(other.timestamp))
+        if (timestamp != other.timestamp)
             return false;
         if (user == null) {
             if (other.user != null)
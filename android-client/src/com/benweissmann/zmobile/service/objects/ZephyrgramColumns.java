@@ -0,0 +1,315 @@
+package com.benweissmann.zmobile.service.objects;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of Zephyrgrams, stored by column: the IDs and timestamps
+ * are kept in primitive arrays, the flags in BitSets, the names as
+ * references into the NamePool, and the bodies back to back in one shared
+ * String. A large result set is then a handful of arrays instead of
+ * thousands of Zephyrgram, Date and String objects.
+ * 
+ * get() returns a short-lived Zephyrgram built from the columns, so don't
+ * compare Zephyrgrams from this list by reference. Use the column accessors
+ * (getId, getCls, getBodies, etc.) to read a field without building one, and
+ * select() to pick out rows.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class ZephyrgramColumns extends AbstractList<Zephyrgram> implements RandomAccess {
+    private final int size;
+    private final int[] ids;
+    private final String[] classes;
+    private final String[] instances;
+    private final String[] senders;
+    private final String[] users;
+    private final long[] timestamps;
+    private final BitSet read;
+    private final BitSet fromMe;
+    private final BitSet toMe;
+    // rows whose flags weren't known (see Zephyrgram.getMeFlags), which are
+    // computed again when they're read
+    private final BitSet meUnknown;
+    
+    // body i is bodies from getBodyStart(i) up to bodyEnds[i]
+    private final String bodies;
+    private final int[] bodyEnds;
+    private final BitSet nullBodies;
+    
+    private ZephyrgramColumns(List<Zephyrgram> zephyrgrams) {
+        this.size = zephyrgrams.size();
+        this.ids = new int[size];
+        this.classes = new String[size];
+        this.instances = new String[size];
+        this.senders = new String[size];
+        this.users = new String[size];
+        this.timestamps = new long[size];
+        this.read = new BitSet(size);
+        this.fromMe = new BitSet(size);
+        this.toMe = new BitSet(size);
+        this.meUnknown = new BitSet(size);
+        this.bodyEnds = new int[size];
+        this.nullBodies = new BitSet(size);
+        
+        int bodyLength = 0;
+        for(int i = 0; i < size; i++) {
+            String body = zephyrgrams.get(i).getBody();
+            bodyLength += (body == null) ? 0 : body.length();
+        }
+        StringBuilder bodies = new StringBuilder(bodyLength);
+        
+        for(int i = 0; i < size; i++) {
+            Zephyrgram z = zephyrgrams.get(i);
+            
+            // the names are already pooled
+            this.ids[i] = z.getId();
+            this.classes[i] = z.getCls();
+            this.instances[i] = z.getInstance();
+            this.senders[i] = z.getRawSender();
+            this.users[i] = z.getRawUser();
+            this.timestamps[i] = z.getTimeMillis();
+            this.read.set(i, z.isRead());
+            
+            byte me = z.getMeFlags();
+            if(me == Zephyrgram.ME_UNKNOWN) {
+                this.meUnknown.set(i);
+            }
+            else {
+                this.fromMe.set(i, (me & Zephyrgram.FROM_ME) != 0);
+                this.toMe.set(i, (me & Zephyrgram.TO_ME) != 0);
+            }
+            
+            String body = z.getBody();
+            if(body == null) {
+                this.nullBodies.set(i);
+            }
+            else {
+                bodies.append(body);
+            }
+            this.bodyEnds[i] = bodies.length();
+        }
+        
+        this.bodies = bodies.toString();
+    }
+    
+    // copies the given rows of other, in order
+    private ZephyrgramColumns(ZephyrgramColumns other, int[] rows) {
+        this.size = rows.length;
+        this.ids = new int[size];
+        this.classes = new String[size];
+        this.instances = new String[size];
+        this.senders = new String[size];
+        this.users = new String[size];
+        this.timestamps = new long[size];
+        this.read = new BitSet(size);
+        this.fromMe = new BitSet(size);
+        this.toMe = new BitSet(size);
+        this.meUnknown = new BitSet(size);
+        this.bodyEnds = new int[size];
+        this.nullBodies = new BitSet(size);
+        
+        int bodyLength = 0;
+        for(int j : rows) {
+            bodyLength += other.bodyEnds[j] - other.getBodyStart(j);
+        }
+        StringBuilder bodies = new StringBuilder(bodyLength);
+        
+        for(int i = 0; i < size; i++) {
+            int j = rows[i];
+            this.ids[i] = other.ids[j];
+            this.classes[i] = other.classes[j];
+            this.instances[i] = other.instances[j];
+            this.senders[i] = other.senders[j];
+            this.users[i] = other.users[j];
+            this.timestamps[i] = other.timestamps[j];
+            this.read.set(i, other.read.get(j));
+            this.fromMe.set(i, other.fromMe.get(j));
+            this.toMe.set(i, other.toMe.get(j));
+            this.meUnknown.set(i, other.meUnknown.get(j));
+            this.nullBodies.set(i, other.nullBodies.get(j));
+            
+            bodies.append(other.bodies, other.getBodyStart(j), other.bodyEnds[j]);
+            this.bodyEnds[i] = bodies.length();
+        }
+        
+        this.bodies = bodies.toString();
+    }
+    
+    // shares every column but the read flags with other
+    private ZephyrgramColumns(ZephyrgramColumns other, BitSet read) {
+        this.size = other.size;
+        this.ids = other.ids;
+        this.classes = other.classes;
+        this.instances = other.instances;
+        this.senders = other.senders;
+        this.users = other.users;
+        this.timestamps = other.timestamps;
+        this.read = read;
+        this.fromMe = other.fromMe;
+        this.toMe = other.toMe;
+        this.meUnknown = other.meUnknown;
+        this.bodies = other.bodies;
+        this.bodyEnds = other.bodyEnds;
+        this.nullBodies = other.nullBodies;
+    }
+    
+    /**
+     * Returns the Zephyrgrams in a ZephyrgramColumns, or the list itself if
+     * it already is one.
+     */
+    public static ZephyrgramColumns copyOf(List<Zephyrgram> zephyrgrams) {
+        if(zephyrgrams instanceof ZephyrgramColumns) {
+            return (ZephyrgramColumns) zephyrgrams;
+        }
+        return new ZephyrgramColumns(zephyrgrams);
+    }
+    
+    @Override
+    public Zephyrgram get(int i) {
+        this.checkIndex(i);
+        return new Zephyrgram(this.ids[i], this.classes[i], this.instances[i],
+                              this.senders[i], this.timestamps[i],
+                              this.read.get(i), this.users[i], this.getBody(i),
+                              this.getMeFlags(i));
+    }
+    
+    @Override
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * Returns the ID of the i-th Zephyrgram
+     */
+    public int getId(int i) {
+        this.checkIndex(i);
+        return this.ids[i];
+    }
+    
+    /**
+     * Returns whether the i-th Zephyrgram is read
+     */
+    public boolean isRead(int i) {
+        this.checkIndex(i);
+        return this.read.get(i);
+    }
+    
+    /**
+     * Returns the i-th Zephyrgram's class, from the NamePool
+     */
+    public String getCls(int i) {
+        this.checkIndex(i);
+        return this.classes[i];
+    }
+    
+    /**
+     * Returns the i-th Zephyrgram's instance, from the NamePool
+     */
+    public String getInstance(int i) {
+        this.checkIndex(i);
+        return this.instances[i];
+    }
+    
+    /**
+     * Returns the i-th Zephyrgram's unstripped sender, from the NamePool
+     */
+    public String getRawSender(int i) {
+        this.checkIndex(i);
+        return this.senders[i];
+    }
+    
+    /**
+     * Returns the i-th Zephyrgram's unstripped user, from the NamePool
+     */
+    public String getRawUser(int i) {
+        this.checkIndex(i);
+        return this.users[i];
+    }
+    
+    /**
+     * Returns whether the i-th Zephyrgram has a body
+     */
+    public boolean hasBody(int i) {
+        this.checkIndex(i);
+        return !this.nullBodies.get(i);
+    }
+    
+    /**
+     * Returns every body, back to back. The i-th Zephyrgram's body runs from
+     * getBodyStart(i) up to getBodyEnd(i), so it can be read without making
+     * a String of it.
+     */
+    public String getBodies() {
+        return this.bodies;
+    }
+    
+    public int getBodyStart(int i) {
+        this.checkIndex(i);
+        return (i == 0) ? 0 : this.bodyEnds[i - 1];
+    }
+    
+    public int getBodyEnd(int i) {
+        this.checkIndex(i);
+        return this.bodyEnds[i];
+    }
+    
+    /**
+     * Returns a list of the Zephyrgrams at the given indices, in order,
+     * without building any of them
+     */
+    public ZephyrgramColumns select(BitSet indices) {
+        if(indices.length() > this.size) {
+            throw new IndexOutOfBoundsException("index " + (indices.length() - 1) + ", size " + this.size);
+        }
+        
+        int[] rows = new int[indices.cardinality()];
+        int i = 0;
+        for(int j = indices.nextSetBit(0); j >= 0; j = indices.nextSetBit(j + 1)) {
+            rows[i++] = j;
+        }
+        return new ZephyrgramColumns(this, rows);
+    }
+    
+    /**
+     * Returns a copy of this list with the Zephyrgrams at the given indices
+     * marked as read. The copy shares all of its other columns with this
+     * list.
+     */
+    public ZephyrgramColumns withRead(BitSet indices) {
+        BitSet newRead = (BitSet) this.read.clone();
+        newRead.or(indices);
+        return new ZephyrgramColumns(this, newRead);
+    }
+    
+    private byte getMeFlags(int i) {
+        if(this.meUnknown.get(i)) {
+            return Zephyrgram.ME_UNKNOWN;
+        }
+        
+        byte me = 0;
+        if(this.fromMe.get(i)) {
+            me |= Zephyrgram.FROM_ME;
+        }
+        if(this.toMe.get(i)) {
+            me |= Zephyrgram.TO_ME;
+        }
+        return me;
+    }
+    
+    private String getBody(int i) {
+        if(this.nullBodies.get(i)) {
+            return null;
+        }
+        
+        return this.bodies.substring(this.getBodyStart(i), this.bodyEnds[i]);
+    }
+    
+    private void checkIndex(int i) {
+        if(i < 0 || i >= this.size) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + this.size);
+        }
+    }
+}
@@ -1,19 +1,19 @@
 package com.benweissmann.zmobile.service.objects;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
 /**
  * Immutable class representing a set of Zephyrgrams returned by the server.
+ * The Zephyrgrams are kept in a ZephyrgramColumns, which result sets built
+ * from the same list share.
  * @author Ben Weissmann <bsw@mit.edu>
  */
 public final class ZephyrgramResultSet implements Iterable<Zephyrgram> {
     private final IQuery query;
     private final String filterId;
     private final int offset;
-    final List<Zephyrgram> zephyrgrams;
+    private final ZephyrgramColumns zephyrgrams;
     
     /**
      * Creates a new ZephyrgramResultSet
@@ -27,7 +27,7 @@ public final class ZephyrgramResultSet implements Iterable<Zephyrgram> {
         this.query = query;
         this.filterId = filterId;
         this.offset = offset;
-        this.zephyrgrams = new ArrayList<Zephyrgram>(zephyrgrams);
+        this.zephyrgrams = ZephyrgramColumns.copyOf(zephyrgrams);
     }
     
     /**
@@ -47,7 +47,8 @@ public final class ZephyrgramResultSet implements Iterable<Zephyrgram> {
     
     /**
      * Returns the ID of the server-side filter we can use to get other pages
-     * of these results
+     * of these results, or null if these results were answered from the
+     * ZephyrService's cache and no filter has been created yet.
      */
     public String getFilterId() {
         return filterId;
@@ -63,8 +64,8 @@ public final class ZephyrgramResultSet implements Iterable<Zephyrgram> {
     /**
      * Returns this page of Zephyrgrams as an unmodifiable list.
      */
-    public List<Zephyrgram> getZephyrgrams() {
-        return Collections.unmodifiableList(zephyrgrams);
+    public ZephyrgramColumns getZephyrgrams() {
+        return zephyrgrams;
     }
     
     public Zephyrgram get(int i) {
@@ -75,7 +76,7 @@ public final class ZephyrgramResultSet implements Iterable<Zephyrgram> {
      * Return the iterator over this page of Zephyrgrams.
      */
     public Iterator<Zephyrgram> iterator() {
-        return this.getZephyrgrams().iterator();
+        return this.zephyrgrams.iterator();
     }
 
     @Override
@@ -24,6 +24,7 @@ import com.benweissmann.zmobile.R;
 import com.benweissmann.zmobile.auth.AuthHelper;
 import com.benweissmann.zmobile.auth.Credentials;
 import com.benweissmann.zmobile.auth.CredentialsCallback;
+import com.benweissmann.zmobile.util.Tracer;
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSch;
@@ -94,8 +95,12 @@ public class SetupHelper {
     }
     
     public static void startServer(final Activity activity, final ZServCallback callback, final boolean reset) {
+        final Tracer.Span span = Tracer.begin("SetupHelper.startServer");
+        final Tracer.Span credentialsSpan = Tracer.begin("AuthHelper.getCredentialsOrPrompt");
+        
         AuthHelper.getCredentialsOrPrompt(activity, new CredentialsCallback() {
             public void run(Credentials credentials) {
+                credentialsSpan.end();
                 try {
                     SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity.getApplicationContext());
                     String server = prefs.getString(getServerKey(activity), null);
@@ -184,6 +189,7 @@ public class SetupHelper {
                     prefsEditor.putInt(getPortKey(activity), port);
                     prefsEditor.putString(getKeyStoreKey(activity), cert);
                     prefsEditor.commit();
+                    span.end();
                     
                     callback.run(new ZServ(server, port, cert));
                 }
@@ -220,6 +226,10 @@ public class SetupHelper {
                     Log.e("SetupHelper", "got zserv exception, going to try resetting", e);
                     SetupHelper.startServer(activity, callback, true);
                 }
+                finally {
+                    // in case it failed
+                    span.end();
+                }
             }
         });
 
@@ -1,17 +1,55 @@
 package com.benweissmann.zmobile.util;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import com.benweissmann.zmobile.service.ZephyrService;
 
+/**
+ * Strips the home domain from principals (bsw@ATHENA.MIT.EDU -> bsw). Only
+ * a principal with a single @ and the home domain is stripped.
+ * 
+ * Every sender and user is stripped, and there are only a few distinct ones,
+ * so the results for the last MAX_CACHED principals are cached.
+ * 
+ * This class is thread-safe.
+ */
 public class DomainStripper {
-    public static String stripDomain(String unstripped) {
-        String[] senderParts = unstripped.split("@");
+    private static final int MAX_CACHED = 256;
+    
+    // least recently used first
+    private static final LinkedHashMap<String, String> cache =
+        new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return this.size() > MAX_CACHED;
+            }
+        };
+    
+    public static synchronized String stripDomain(String unstripped) {
+        String stripped = cache.get(unstripped);
+        if(stripped == null) {
+            stripped = strip(unstripped);
+            cache.put(unstripped, stripped);
+        }
+        return stripped;
+    }
+    
+    private static String strip(String unstripped) {
+        int at = unstripped.indexOf('@');
         
-        if(senderParts.length != 2) {
+        if(at < 0 || unstripped.indexOf('@', at + 1) >= 0) {
             return unstripped;
         }
         
-        if(senderParts[1].equalsIgnoreCase(ZephyrService.HOME_DOMAIN)) {
-            return senderParts[0];
+        String domain = ZephyrService.HOME_DOMAIN;
+        int domainStart = at + 1;
+        
+        if(unstripped.length() - domainStart == domain.length() &&
+           unstripped.regionMatches(true, domainStart, domain, 0, domain.length())) {
+            return unstripped.substring(0, at);
         }
         
         return unstripped;
@@ -0,0 +1,66 @@
+package com.benweissmann.zmobile.util;
+
+import java.util.List;
+
+import com.benweissmann.zmobile.service.objects.ZephyrgramSet;
+
+/**
+ * Compares a displayed list of ZephyrgramSets with a freshly-fetched one, so
+ * a refresh only redraws what actually changed.
+ * 
+ * Sets are matched by name. If both lists have the same names in the same
+ * order, the refresh only changed counts (or flags like starred), and
+ * changedPositions returns just the positions whose set differs. Otherwise
+ * sets were inserted, removed or moved, and the caller has to redraw the
+ * whole list.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class ListDiff {
+    private ListDiff() {}
+    
+    /**
+     * Returns the positions in current whose set differs from the set at the
+     * same position in fresh, or null if the two lists don't have the same
+     * names in the same order.
+     */
+    public static <T extends ZephyrgramSet> int[] changedPositions(List<T> current, List<T> fresh) {
+        int size = current.size();
+        if(size != fresh.size()) {
+            return null;
+        }
+        
+        int[] changed = new int[size];
+        int changedCount = 0;
+        
+        for(int i = 0; i < size; i++) {
+            T oldItem = current.get(i);
+            T newItem = fresh.get(i);
+            
+            if(!oldItem.getName().equals(newItem.getName())) {
+                return null;
+            }
+            
+            if(!oldItem.equals(newItem)) {
+                changed[changedCount++] = i;
+            }
+        }
+        
+        int[] result = new int[changedCount];
+        System.arraycopy(changed, 0, result, 0, changedCount);
+        return result;
+    }
+    
+    /**
+     * Returns the position of the set with the given name, or -1 if there
+     * isn't one.
+     */
+    public static <T extends ZephyrgramSet> int indexOfName(List<T> items, String name) {
+        for(int i = 0; i < items.size(); i++) {
+            if(items.get(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
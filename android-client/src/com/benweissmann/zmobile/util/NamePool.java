@@ -0,0 +1,45 @@
+package com.benweissmann.zmobile.util;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of class, instance and principal names. Zephyrgrams from a handful of
+ * classes repeat the same few names thousands of times, so they share one
+ * copy of each name from this pool, and names from the pool can be compared
+ * with ==.
+ * 
+ * Unlike String.intern, the pool only holds names weakly, so names that no
+ * Zephyrgram or Query uses anymore can be collected, and lookups don't go
+ * through the VM's global intern table.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class NamePool {
+    private static final WeakHashMap<String, WeakReference<String>> names =
+        new WeakHashMap<String, WeakReference<String>>();
+    
+    private NamePool() {}
+    
+    /**
+     * Returns the pooled copy of a name, adding it to the pool if it isn't
+     * there yet. Returns null for null.
+     */
+    public static synchronized String intern(String name) {
+        if(name == null) {
+            return null;
+        }
+        
+        WeakReference<String> ref = names.get(name);
+        String pooled = (ref == null) ? null : ref.get();
+        
+        if(pooled == null) {
+            pooled = name;
+            names.put(pooled, new WeakReference<String>(pooled));
+        }
+        
+        return pooled;
+    }
+}
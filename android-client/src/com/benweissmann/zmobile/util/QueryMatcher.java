@@ -0,0 +1,369 @@
+package com.benweissmann.zmobile.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.benweissmann.zmobile.service.objects.IQuery;
+import com.benweissmann.zmobile.service.objects.Query;
+import com.benweissmann.zmobile.service.objects.Zephyrgram;
+import com.benweissmann.zmobile.service.objects.ZephyrgramColumns;
+
+/**
+ * Evaluates an IQuery against Zephyrgrams on the device, with the same
+ * semantics as zserv's filters: a Zephyrgram matches a Query if it has the
+ * query's class, instance, sender and user (compared with the server's
+ * unstripped sender and user), and its body matches the query's text. Fields
+ * that aren't set match anything. A Zephyrgram matches an OrQuery if it
+ * matches any of its clauses.
+ * 
+ * Text is matched the way zserv's full-text index matches it. The text and
+ * the body are split into words (runs of letters, digits and non-ASCII
+ * characters), and the body matches if it has the text's words in a row,
+ * with the last one matched as a prefix. Case is ignored for ASCII letters
+ * only. So "linux mess" matches "Linux messages" but not "linuxes", and
+ * "foo" doesn't match "afoob". Text with no words matches nothing.
+ * 
+ * Each clause is compiled once, when the QueryMatcher is created. Its
+ * strings are taken from the NamePool, as Zephyrgrams' are, so all fields but
+ * the text are compared by reference. A ZephyrgramColumns is matched column
+ * by column, without building its Zephyrgrams or their bodies.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class QueryMatcher {
+    private final IQuery query;
+    private final Clause[] clauses;
+    
+    private QueryMatcher(IQuery query) {
+        this.query = query;
+        
+        Query[] queryClauses = query.queryArray();
+        if(queryClauses.length == 0) {
+            // like the server, treat a query with no clauses as matching
+            // everything
+            queryClauses = new Query[]{new Query()};
+        }
+        
+        this.clauses = new Clause[queryClauses.length];
+        for(int i = 0; i < queryClauses.length; i++) {
+            this.clauses[i] = new Clause(queryClauses[i]);
+        }
+    }
+    
+    /**
+     * Compiles a query into a QueryMatcher
+     */
+    public static QueryMatcher compile(IQuery query) {
+        return new QueryMatcher(query);
+    }
+    
+    /**
+     * Returns the query this matcher was compiled from
+     */
+    public IQuery getQuery() {
+        return this.query;
+    }
+    
+    /**
+     * Returns true if the given Zephyrgram matches this matcher's query
+     */
+    public boolean matches(Zephyrgram zephyrgram) {
+        for(Clause clause : this.clauses) {
+            if(clause.matches(zephyrgram)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns true if the i-th Zephyrgram in a ZephyrgramColumns matches this
+     * matcher's query
+     */
+    public boolean matches(ZephyrgramColumns zephyrgrams, int i) {
+        for(Clause clause : this.clauses) {
+            if(clause.matches(zephyrgrams, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the Zephyrgrams that match this matcher's query, in order
+     */
+    public List<Zephyrgram> filter(List<Zephyrgram> zephyrgrams) {
+        if(zephyrgrams instanceof ZephyrgramColumns) {
+            return this.filter((ZephyrgramColumns) zephyrgrams);
+        }
+        
+        List<Zephyrgram> matched = new ArrayList<Zephyrgram>();
+        for(Zephyrgram zephyrgram : zephyrgrams) {
+            if(this.matches(zephyrgram)) {
+                matched.add(zephyrgram);
+            }
+        }
+        return matched;
+    }
+    
+    /**
+     * Like filter(List), but for a ZephyrgramColumns, which is filtered
+     * without building its Zephyrgrams
+     */
+    public ZephyrgramColumns filter(ZephyrgramColumns zephyrgrams) {
+        BitSet matched = new BitSet(zephyrgrams.size());
+        for(int i = 0; i < zephyrgrams.size(); i++) {
+            if(this.matches(zephyrgrams, i)) {
+                matched.set(i);
+            }
+        }
+        return zephyrgrams.select(matched);
+    }
+    
+    /**
+     * Returns true if every Zephyrgram that matches the given query also
+     * matches this matcher's query, e.g. if this matcher's query is
+     * "class foo" and the given query is "class foo, instance bar". This only
+     * looks at the queries' fields, so it may return false for some queries
+     * that are contained in this one, but never returns true for a query that
+     * isn't.
+     */
+    public boolean contains(IQuery other) {
+        return this.contains(QueryMatcher.compile(other));
+    }
+    
+    /**
+     * Like contains(IQuery), for an already-compiled query
+     */
+    public boolean contains(QueryMatcher other) {
+        for(Clause otherClause : other.clauses) {
+            boolean contained = false;
+            for(Clause clause : this.clauses) {
+                if(clause.contains(otherClause)) {
+                    contained = true;
+                    break;
+                }
+            }
+            
+            if(!contained) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Splits text into lower-cased words, as zserv's full-text index does
+     */
+    static String[] words(String text) {
+        List<String> words = new ArrayList<String>();
+        int length = text.length();
+        int i = nextWord(text, 0, length);
+        while(i < length) {
+            int end = wordEnd(text, i, length);
+            StringBuilder word = new StringBuilder(end - i);
+            for(int j = i; j < end; j++) {
+                word.append(lowerAscii(text.charAt(j)));
+            }
+            words.add(word.toString());
+            i = nextWord(text, end, length);
+        }
+        return words.toArray(new String[words.size()]);
+    }
+    
+    /**
+     * Returns true if body has the given words (from words()) in a row,
+     * the last one as a prefix. Doesn't allocate.
+     */
+    static boolean matchesWords(String body, String[] words) {
+        return body != null && matchesWords(body, 0, body.length(), words);
+    }
+    
+    /**
+     * Like matchesWords(String, String[]), for text's characters from index
+     * from (inclusive) to index to (exclusive)
+     */
+    static boolean matchesWords(String text, int from, int to, String[] words) {
+        if(words.length == 0) {
+            return false;
+        }
+        
+        for(int start = nextWord(text, from, to); start < to;
+            start = nextWord(text, wordEnd(text, start, to), to)) {
+            
+            int i = start;
+            int w = 0;
+            while(w < words.length && i < to) {
+                int end = wordEnd(text, i, to);
+                boolean last = (w == words.length - 1);
+                if(!wordMatches(text, i, end, words[w], last)) {
+                    break;
+                }
+                w++;
+                i = nextWord(text, end, to);
+            }
+            
+            if(w == words.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // true if every body that matches the words in other matches the words
+    // in these: they must appear in a row in other, the last as a prefix of
+    // its word, and if that's other's last word (itself only a prefix) the
+    // whole of it
+    static boolean containsWords(String[] these, String[] other) {
+        if(other.length == 0) {
+            // other matches nothing
+            return true;
+        }
+        if(these.length == 0) {
+            return false;
+        }
+        
+        int last = these.length - 1;
+        for(int offset = 0; offset + these.length <= other.length; offset++) {
+            boolean contained = true;
+            for(int w = 0; w < last && contained; w++) {
+                contained = (offset + w < other.length - 1)
+                            && these[w].equals(other[offset + w]);
+            }
+            if(contained && other[offset + last].startsWith(these[last])) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean wordMatches(String body, int start, int end, String word, boolean prefix) {
+        int length = end - start;
+        if(prefix ? (length < word.length()) : (length != word.length())) {
+            return false;
+        }
+        
+        for(int i = 0; i < word.length(); i++) {
+            if(lowerAscii(body.charAt(start + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean isWordChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z')
+               || (c >= 'a' && c <= 'z') || c >= 0x80;
+    }
+    
+    private static char lowerAscii(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+    
+    // the index of the first word character at or after i, or end
+    private static int nextWord(String text, int i, int end) {
+        while(i < end && !isWordChar(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+    
+    // the index just past the word starting at i, at most end
+    private static int wordEnd(String text, int i, int end) {
+        while(i < end && isWordChar(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+    
+    // a single compiled Query. null fields match anything.
+    private static final class Clause {
+        private final String cls;
+        private final String instance;
+        private final String sender;
+        private final String user;
+        
+        // the text's words, or null if the query has no text
+        private final String[] words;
+        
+        public Clause(Query query) {
+            this.cls = NamePool.intern(query.getCls());
+            this.instance = NamePool.intern(query.getInstance());
+            this.sender = NamePool.intern(query.getSender());
+            this.user = NamePool.intern(query.getUser());
+            this.words = (query.getText() == null) ? null : words(query.getText());
+        }
+        
+        public boolean matches(Zephyrgram z) {
+            // Zephyrgrams take their fields from the NamePool, so these can
+            // be compared by reference
+            if(this.cls != null && this.cls != z.getCls()) {
+                return false;
+            }
+            if(this.instance != null && this.instance != z.getInstance()) {
+                return false;
+            }
+            if(this.sender != null && this.sender != z.getRawSender()) {
+                return false;
+            }
+            if(this.user != null && this.user != z.getRawUser()) {
+                return false;
+            }
+            if(this.words != null && !matchesWords(z.getBody(), this.words)) {
+                return false;
+            }
+            return true;
+        }
+        
+        public boolean matches(ZephyrgramColumns zephyrgrams, int i) {
+            if(this.cls != null && this.cls != zephyrgrams.getCls(i)) {
+                return false;
+            }
+            if(this.instance != null && this.instance != zephyrgrams.getInstance(i)) {
+                return false;
+            }
+            if(this.sender != null && this.sender != zephyrgrams.getRawSender(i)) {
+                return false;
+            }
+            if(this.user != null && this.user != zephyrgrams.getRawUser(i)) {
+                return false;
+            }
+            if(this.words != null) {
+                if(!zephyrgrams.hasBody(i)) {
+                    return false;
+                }
+                if(!matchesWords(zephyrgrams.getBodies(), zephyrgrams.getBodyStart(i),
+                                 zephyrgrams.getBodyEnd(i), this.words)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        // true if every Zephyrgram that matches other matches this clause
+        public boolean contains(Clause other) {
+            if(this.cls != null && this.cls != other.cls) {
+                return false;
+            }
+            if(this.instance != null && this.instance != other.instance) {
+                return false;
+            }
+            if(this.sender != null && this.sender != other.sender) {
+                return false;
+            }
+            if(this.user != null && this.user != other.user) {
+                return false;
+            }
+            if(this.words != null) {
+                if(other.words == null) {
+                    return false;
+                }
+                if(!containsWords(this.words, other.words)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
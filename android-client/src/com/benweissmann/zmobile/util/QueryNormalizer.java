@@ -0,0 +1,115 @@
+package com.benweissmann.zmobile.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.benweissmann.zmobile.service.objects.IQuery;
+import com.benweissmann.zmobile.service.objects.OrQuery;
+import com.benweissmann.zmobile.service.objects.Query;
+
+/**
+ * Puts IQueries into a canonical form, so queries that match the same
+ * Zephyrgrams are usually equal (and have equal hash codes), and so the
+ * server doesn't evaluate redundant clauses.
+ * 
+ * A normalized query has no duplicate clauses, no clause that's contained
+ * in another clause (e.g. "class foo, instance bar" is dropped if there's
+ * also a "class foo" clause), and its clauses in a fixed order. A query
+ * that normalizes to a single clause is returned as a Query.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class QueryNormalizer {
+    private QueryNormalizer() {}
+    
+    private static final Comparator<Query> CLAUSE_ORDER = new Comparator<Query>() {
+        public int compare(Query a, Query b) {
+            int c = compareFields(a.getCls(), b.getCls());
+            if(c != 0) {
+                return c;
+            }
+            c = compareFields(a.getInstance(), b.getInstance());
+            if(c != 0) {
+                return c;
+            }
+            c = compareFields(a.getSender(), b.getSender());
+            if(c != 0) {
+                return c;
+            }
+            c = compareFields(a.getUser(), b.getUser());
+            if(c != 0) {
+                return c;
+            }
+            return compareFields(a.getText(), b.getText());
+        }
+    };
+    
+    /**
+     * Returns the canonical form of a query
+     */
+    public static IQuery normalize(IQuery query) {
+        Query[] clauses = query.queryArray();
+        if(clauses.length == 0) {
+            // matches everything, like the server
+            return new Query();
+        }
+        if(clauses.length == 1) {
+            return clauses[0];
+        }
+        
+        // sorting first puts duplicates next to each other, and puts each
+        // clause after the clauses with fewer fields set that could
+        // contain it
+        Query[] sorted = clauses.clone();
+        Arrays.sort(sorted, CLAUSE_ORDER);
+        
+        List<Query> kept = new ArrayList<Query>(sorted.length);
+        List<QueryMatcher> keptMatchers = new ArrayList<QueryMatcher>(sorted.length);
+        
+        for(Query clause : sorted) {
+            QueryMatcher matcher = QueryMatcher.compile(clause);
+            if(isContained(matcher, keptMatchers)) {
+                continue;
+            }
+            
+            // a text clause can contain clauses that sort before it, e.g.
+            // "text a" contains "class x, text ab", so drop any of those
+            for(int i = kept.size() - 1; i >= 0; i--) {
+                if(matcher.contains(keptMatchers.get(i))) {
+                    kept.remove(i);
+                    keptMatchers.remove(i);
+                }
+            }
+            
+            kept.add(clause);
+            keptMatchers.add(matcher);
+        }
+        
+        if(kept.size() == 1) {
+            return kept.get(0);
+        }
+        return OrQuery.of(kept.toArray(new Query[kept.size()]));
+    }
+    
+    private static boolean isContained(QueryMatcher matcher, List<QueryMatcher> matchers) {
+        for(QueryMatcher other : matchers) {
+            if(other.contains(matcher)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // unset fields sort first
+    private static int compareFields(String a, String b) {
+        if(a == null) {
+            return (b == null) ? 0 : -1;
+        }
+        if(b == null) {
+            return 1;
+        }
+        return a.compareTo(b);
+    }
+}
@@ -58,6 +58,7 @@ public class TextWrapper {
         if (str == null) {
             return null;
         }
+        
         if (newLineStr == null) {
             newLineStr = "\n";
         }
@@ -66,7 +67,10 @@ public class TextWrapper {
         }
         int inputLineLength = str.length();
         int offset = 0;
-        StringBuilder wrappedLine = new StringBuilder(inputLineLength + 32);
+        
+        // a little room for the new lines. Lines are appended as ranges of
+        // str, so no substrings are made.
+        StringBuilder wrappedLine = new StringBuilder(inputLineLength + inputLineLength / 32 + 16);
         
         while (inputLineLength - offset > wrapLength) {
             if (str.charAt(offset) == ' ') {
@@ -77,7 +81,7 @@ public class TextWrapper {
 
             if (spaceToWrapAt >= offset) {
                 // normal case
-                wrappedLine.append(str.substring(offset, spaceToWrapAt));
+                wrappedLine.append(str, offset, spaceToWrapAt);
                 wrappedLine.append(newLineStr);
                 offset = spaceToWrapAt + 1;
                 
@@ -85,18 +89,18 @@ public class TextWrapper {
                 // really long word or URL
                 if (wrapLongWords) {
                     // wrap really long word one line at a time
-                    wrappedLine.append(str.substring(offset, wrapLength + offset));
+                    wrappedLine.append(str, offset, wrapLength + offset);
                     wrappedLine.append(newLineStr);
                     offset += wrapLength;
                 } else {
                     // do not wrap really long word, just extend beyond limit
                     spaceToWrapAt = str.indexOf(' ', wrapLength + offset);
                     if (spaceToWrapAt >= 0) {
-                        wrappedLine.append(str.substring(offset, spaceToWrapAt));
+                        wrappedLine.append(str, offset, spaceToWrapAt);
                         wrappedLine.append(newLineStr);
                         offset = spaceToWrapAt + 1;
                     } else {
-                        wrappedLine.append(str.substring(offset));
+                        wrappedLine.append(str, offset, inputLineLength);
                         offset = inputLineLength;
                     }
                 }
@@ -104,10 +108,10 @@ public class TextWrapper {
         }
 
         // Whatever is left in line is short enough to just pass through
-        wrappedLine.append(str.substring(offset));
-
+        wrappedLine.append(str, offset, inputLineLength);
+        
         return wrappedLine.toString();
-    } 
+    }
     
     public static String unwrap(String wrapped) {
         List<String> lines = new ArrayList<String>(Arrays.asList(wrapped.split("\n", -1)));
@@ -0,0 +1,122 @@
+package com.benweissmann.zmobile.util;
+
+import java.text.DateFormatSymbols;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.benweissmann.zmobile.R;
+
+import android.content.Context;
+
+/**
+ * Formats the times shown next to Zephyrgrams. Times from today are shown as
+ * hh:mm; older times are prefixed with "Yesterday" (R.string.yesterday), the
+ * day of the week (for the last week), or the date, in the Context's locale.
+ * 
+ * Zephyrgrams arrive in bursts, so many share a minute. Formatted strings
+ * are cached by minute, and the cache is emptied when the day or the locale
+ * changes, since that changes the prefix each minute gets. Formatting
+ * doesn't use String.format.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class TimeFormatter {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long DAY_MS = 24 * 60 * MINUTE_MS;
+    private static final int MAX_CACHED = 512;
+    
+    // for cachedLocale
+    private static DateFormatSymbols symbols = null;
+    private static String yesterday = null;
+    
+    // least recently used first
+    private static final LinkedHashMap<Long, String> cache =
+        new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return this.size() > MAX_CACHED;
+            }
+        };
+    
+    private static long cachedDay = Long.MIN_VALUE;
+    private static Locale cachedLocale = null;
+    
+    private TimeFormatter() {}
+    
+    /**
+     * Returns the display string for a time, in milliseconds since the epoch
+     */
+    public static synchronized String format(Context context, long timestamp) {
+        long today = localDay(System.currentTimeMillis());
+        if(today != cachedDay) {
+            cache.clear();
+            cachedDay = today;
+        }
+        
+        Locale locale = context.getResources().getConfiguration().locale;
+        if(!locale.equals(cachedLocale)) {
+            cache.clear();
+            symbols = new DateFormatSymbols(locale);
+            yesterday = context.getString(R.string.yesterday);
+            cachedLocale = locale;
+        }
+        
+        Long minute = Long.valueOf(timestamp / MINUTE_MS);
+        String formatted = cache.get(minute);
+        
+        if(formatted == null) {
+            formatted = build(timestamp, today);
+            cache.put(minute, formatted);
+        }
+        
+        return formatted;
+    }
+    
+    private static String build(long timestamp, long today) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timestamp);
+        
+        StringBuilder builder = new StringBuilder(16);
+        long daysAgo = today - localDay(timestamp);
+        
+        if(daysAgo == 1) {
+            builder.append(yesterday).append(' ');
+        }
+        else if(daysAgo > 1 && daysAgo < 7) {
+            builder.append(symbols.getShortWeekdays()[calendar.get(Calendar.DAY_OF_WEEK)])
+                   .append(' ');
+        }
+        else if(daysAgo != 0) {
+            builder.append(symbols.getShortMonths()[calendar.get(Calendar.MONTH)])
+                   .append(' ')
+                   .append(calendar.get(Calendar.DAY_OF_MONTH))
+                   .append(' ');
+        }
+        
+        appendTwoDigits(builder, calendar.get(Calendar.HOUR_OF_DAY));
+        builder.append(':');
+        appendTwoDigits(builder, calendar.get(Calendar.MINUTE));
+        
+        return builder.toString();
+    }
+    
+    // the number of days between the epoch and the local day of a time
+    private static long localDay(long timestamp) {
+        long local = timestamp + TimeZone.getDefault().getOffset(timestamp);
+        return local / DAY_MS;
+    }
+    
+    private static void appendTwoDigits(StringBuilder builder, int n) {
+        if(n < 10) {
+            builder.append('0');
+        }
+        builder.append(n);
+    }
+}
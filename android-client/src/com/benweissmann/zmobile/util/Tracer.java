@@ -0,0 +1,140 @@
+package com.benweissmann.zmobile.util;
+
+/**
+ * Lightweight trace spans, for seeing where the time goes during startup
+ * (zserv setup, loading credentials, binding to the service, fetching and
+ * showing the first list).
+ * 
+ * Call begin() where something starts and end() on the returned Span where
+ * it finishes, which can be on another thread (e.g. in a callback). Only the
+ * last MAX_SPANS completed spans are kept, in a ring buffer, so tracing is
+ * always on: beginning a span reads the clock and allocates one small
+ * object, and ending it writes a few array slots.
+ * 
+ * toJson() exports the spans in the Chrome trace-event format, which can be
+ * opened in chrome://tracing or Perfetto. The ZephyrService dumps it with
+ * "adb shell dumpsys activity service ZephyrService trace".
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public final class Tracer {
+    private static final int MAX_SPANS = 256;
+    
+    // completed spans, oldest first starting at next once the buffer is
+    // full; guarded by the Tracer class
+    private static final String[] names = new String[MAX_SPANS];
+    private static final String[] threads = new String[MAX_SPANS];
+    private static final long[] tids = new long[MAX_SPANS];
+    private static final long[] starts = new long[MAX_SPANS];
+    private static final long[] durations = new long[MAX_SPANS];
+    private static int next = 0;
+    private static int count = 0;
+    
+    private Tracer() {}
+    
+    /**
+     * Starts a span. Call end() on it when whatever it's timing finishes.
+     */
+    public static Span begin(String name) {
+        return new Span(name, Thread.currentThread(), System.nanoTime());
+    }
+    
+    /**
+     * A span that has begun. Only the first call to end() counts, so it's
+     * safe to end a span on every path out of an operation.
+     */
+    public static final class Span {
+        private final String name;
+        private final Thread thread;
+        private final long start;
+        private boolean ended = false;
+        
+        private Span(String name, Thread thread, long start) {
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+        }
+        
+        public void end() {
+            long end = System.nanoTime();
+            
+            synchronized(Tracer.class) {
+                if(this.ended) {
+                    return;
+                }
+                this.ended = true;
+                
+                names[next] = this.name;
+                threads[next] = this.thread.getName();
+                tids[next] = this.thread.getId();
+                starts[next] = this.start;
+                durations[next] = end - this.start;
+                
+                next = (next + 1) % MAX_SPANS;
+                count = Math.min(count + 1, MAX_SPANS);
+            }
+        }
+    }
+    
+    /**
+     * Forgets every completed span
+     */
+    public static synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+    
+    /**
+     * Returns the completed spans as a trace-event JSON object, oldest
+     * first. Times are in microseconds since an arbitrary origin, and each
+     * span is a complete ("X") event on the thread that began it.
+     */
+    public static synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"traceEvents\":[");
+        
+        int first = (next - count + MAX_SPANS) % MAX_SPANS;
+        for(int i = 0; i < count; i++) {
+            int slot = (first + i) % MAX_SPANS;
+            
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append("\n{\"name\":");
+            appendString(json, names[slot]);
+            json.append(",\"cat\":\"zmobile\",\"ph\":\"X\",\"ts\":").append(starts[slot] / 1000)
+                .append(",\"dur\":").append(durations[slot] / 1000)
+                .append(",\"pid\":1,\"tid\":").append(tids[slot])
+                .append(",\"args\":{\"thread\":");
+            appendString(json, threads[slot]);
+            json.append("}}");
+        }
+        
+        json.append("\n],\"displayTimeUnit\":\"ms\"}\n");
+        return json.toString();
+    }
+    
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            }
+            else if(c < 0x20) {
+                String hex = Integer.toHexString(c);
+                json.append("\\u");
+                for(int j = hex.length(); j < 4; j++) {
+                    json.append('0');
+                }
+                json.append(hex);
+            }
+            else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -2,15 +2,50 @@ package com.benweissmann.zmobile.util;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.content.Intent;
 import android.net.Uri;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.URLSpan;
 
+/**
+ * Finds http and https urls in zephyrgram bodies.
+ * 
+ * A url starts with http:// or https:// at a word boundary, runs through the
+ * characters -A-Za-z0-9+&@#/%?=~_()|!:,.; and ends with one of
+ * -A-Za-z0-9+&@#/%=~_()|. A url wrapped in parentheses doesn't include them.
+ * 
+ * Urls are found with a hand-written scanner that reads each character of
+ * the text a bounded number of times, so long runs of url-ish characters
+ * can't make it backtrack the way a regular expression would.
+ */
 public class URIs {
-    private static final Pattern URL_PATTERN =
-            Pattern.compile("\\(?\\bhttps?://[-A-Za-z0-9+&@#/%?=~_()|!:,.;]*[-A-Za-z0-9+&@#/%=~_()|]");
+    private static final int[] NO_SPANS = new int[0];
+    
+    // what each ascii character can be in a url
+    private static final byte NOT_URL = 0;
+    private static final byte URL = 1;
+    private static final byte URL_END = 2;
+    private static final byte[] URL_CHARS = new byte[128];
+    
+    static {
+        for(char c = 'a'; c <= 'z'; c++) {
+            URL_CHARS[c] = URL_END;
+        }
+        for(char c = 'A'; c <= 'Z'; c++) {
+            URL_CHARS[c] = URL_END;
+        }
+        for(char c = '0'; c <= '9'; c++) {
+            URL_CHARS[c] = URL_END;
+        }
+        for(char c : "-+&@#/%=~_()|".toCharArray()) {
+            URL_CHARS[c] = URL_END;
+        }
+        for(char c : "?!:,.;".toCharArray()) {
+            URL_CHARS[c] = URL;
+        }
+    }
     
     /**
      * Returns an intent that will open the given url.
@@ -20,20 +55,131 @@ public class URIs {
     }
     
     /**
-     * Returns a list of urls contained in the given text
+     * Returns where the urls in the given text are, as start and end indices:
+     * {start0, end0, start1, end1, ...}.
      */
-    public static List<String> extractUrls(String text) {
-        List<String> matches = new ArrayList<String>();
-        Matcher matcher = URL_PATTERN.matcher(text);
+    public static int[] findUrls(String text) {
+        int[] spans = NO_SPANS;
+        int count = 0;
+        
+        int length = text.length();
+        int previousEnd = 0;
+        int i = 0;
         
-        while(matcher.find()) {
-            String s = matcher.group();
-            if(s.startsWith("(") && s.endsWith(")")) {
-                s = s.substring(1, s.length()-1);
+        while(i < length) {
+            int p = text.indexOf("http", i);
+            if(p < 0) {
+                break;
             }
-            matches.add(s);
+            
+            int schemeEnd = schemeEnd(text, p);
+            if(schemeEnd < 0 || (p > 0 && isWordChar(text.charAt(p - 1)))) {
+                i = p + 1;
+                continue;
+            }
+            
+            // take the whole run of url characters, then back up to the last
+            // one a url can end with
+            int end = -1;
+            int j = schemeEnd;
+            while(j < length) {
+                char c = text.charAt(j);
+                if(c >= 128 || URL_CHARS[c] == NOT_URL) {
+                    break;
+                }
+                if(URL_CHARS[c] == URL_END) {
+                    end = j + 1;
+                }
+                j++;
+            }
+            
+            if(end < 0) {
+                // nothing in this run can end a url, so no url starts in it
+                i = Math.max(j, p + 1);
+                continue;
+            }
+            
+            // a url wrapped in parentheses doesn't include them (the opening
+            // one can't be the end of the previous url)
+            boolean wrapped = (p > previousEnd) && (text.charAt(p - 1) == '(') &&
+                              (text.charAt(end - 1) == ')');
+            
+            if(count + 2 > spans.length) {
+                int[] grown = new int[Math.max(4, spans.length * 2)];
+                System.arraycopy(spans, 0, grown, 0, count);
+                spans = grown;
+            }
+            spans[count++] = p;
+            spans[count++] = wrapped ? end - 1 : end;
+            
+            previousEnd = end;
+            i = j;
         }
         
-        return matches;
+        if(count == spans.length) {
+            return spans;
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(spans, 0, trimmed, 0, count);
+        return trimmed;
+    }
+    
+    /**
+     * Returns a list of urls contained in the given text
+     */
+    public static List<String> extractUrls(String text) {
+        return urlsAt(text, findUrls(text));
+    }
+    
+    /**
+     * Returns the urls at the given spans (from findUrls) of the text
+     */
+    public static List<String> urlsAt(String text, int[] spans) {
+        List<String> urls = new ArrayList<String>(spans.length / 2);
+        for(int i = 0; i < spans.length; i += 2) {
+            urls.add(text.substring(spans[i], spans[i+1]));
+        }
+        return urls;
+    }
+    
+    /**
+     * Returns the given text with each url in it marked up with a URLSpan.
+     * If the text contains no urls, returns the text itself.
+     */
+    public static CharSequence linkify(String text) {
+        return linkify(text, findUrls(text));
+    }
+    
+    /**
+     * Returns the given text with each of the given spans (from findUrls)
+     * marked up with a URLSpan. If there are no spans, returns the text
+     * itself.
+     */
+    public static CharSequence linkify(String text, int[] spans) {
+        if(spans.length == 0) {
+            return text;
+        }
+        
+        SpannableString linkified = new SpannableString(text);
+        for(int i = 0; i < spans.length; i += 2) {
+            linkified.setSpan(new URLSpan(text.substring(spans[i], spans[i+1])),
+                              spans[i], spans[i+1],
+                              Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return linkified;
+    }
+    
+    // the index after "http://" or "https://" at the given index, or -1
+    private static int schemeEnd(String text, int start) {
+        int i = start + 4;
+        if(i < text.length() && text.charAt(i) == 's') {
+            i++;
+        }
+        return text.startsWith("://", i) ? i + 3 : -1;
+    }
+    
+    // what \b treats as part of a word
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
     }
 }
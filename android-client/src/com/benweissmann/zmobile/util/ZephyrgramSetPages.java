@@ -0,0 +1,105 @@
+package com.benweissmann.zmobile.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.benweissmann.zmobile.service.objects.ZephyrgramSet;
+
+/**
+ * The ZephyrgramSets fetched so far for one load of a list, which are
+ * fetched in two stages: first a set of priority items (e.g. everything
+ * unread), then pages of all items, as the user scrolls. Sets are
+ * de-duplicated by name: a set that appears in both stages keeps the
+ * position it was first fetched at, but takes the most recently fetched
+ * counts.
+ * 
+ * Only one page is fetched at a time: call startLoading before fetching a
+ * page, and addPage or stopLoading when it's done.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public class ZephyrgramSetPages<T extends ZephyrgramSet> {
+    private final ArrayList<T> items = new ArrayList<T>();
+    private final HashMap<String, Integer> positions = new HashMap<String, Integer>();
+    private int nextOffset = 0;
+    private boolean exhausted = false;
+    private boolean loading = false;
+    
+    /**
+     * Adds priority items. Does nothing if fetched is null.
+     */
+    public synchronized void addItems(T[] fetched) {
+        if(fetched == null) {
+            return;
+        }
+        
+        for(T item : fetched) {
+            Integer position = this.positions.get(item.getName());
+            if(position == null) {
+                this.positions.put(item.getName(), this.items.size());
+                this.items.add(item);
+            }
+            else {
+                this.items.set(position, item);
+            }
+        }
+    }
+    
+    /**
+     * Adds the next page of items and finishes loading it.
+     * @param page    The items returned for the page
+     * @param perpage The page size that was requested
+     */
+    public synchronized void addPage(T[] page, int perpage) {
+        this.addItems(page);
+        this.nextOffset += page.length;
+        this.exhausted = (page.length < perpage);
+        this.loading = false;
+    }
+    
+    /**
+     * Marks the next page as loading.
+     * @return false if a page is already loading or every page has been
+     *         fetched, in which case nothing should be fetched.
+     */
+    public synchronized boolean startLoading() {
+        if(this.loading || this.exhausted) {
+            return false;
+        }
+        
+        this.loading = true;
+        return true;
+    }
+    
+    /**
+     * Marks the next page as no longer loading, without adding it (e.g.
+     * because fetching it failed).
+     */
+    public synchronized void stopLoading() {
+        this.loading = false;
+    }
+    
+    /**
+     * Returns the offset of the next page to fetch
+     */
+    public synchronized int getNextOffset() {
+        return this.nextOffset;
+    }
+    
+    /**
+     * Returns true if every page has been fetched
+     */
+    public synchronized boolean isExhausted() {
+        return this.exhausted;
+    }
+    
+    /**
+     * Returns a copy of the items fetched so far
+     */
+    public synchronized List<T> getItems() {
+        return new ArrayList<T>(this.items);
+    }
+}
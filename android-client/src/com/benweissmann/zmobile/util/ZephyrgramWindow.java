@@ -0,0 +1,187 @@
+package com.benweissmann.zmobile.util;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+
+import com.benweissmann.zmobile.listadapters.RenderedPage;
+import com.benweissmann.zmobile.listadapters.RenderedZephyrgram;
+import com.benweissmann.zmobile.service.objects.ZephyrgramResultSet;
+
+/**
+ * A bounded, sliding window over the pages of a query's results.
+ *
+ * Pages are kept in a ring buffer, so adding a page to either end of the
+ * window is O(1) and never shifts the pages already held. Once the window
+ * holds more than its maximum number of pages, pages are evicted from the
+ * opposite end. Evicted pages don't need to be tracked: the first and last
+ * pages in the window know their own offsets, so the evicted pages can be
+ * re-fetched with ZephyrBinder#fetchPrevPage and ZephyrBinder#fetchNextPage.
+ *
+ * The window is a read-only List of the RenderedZephyrgrams in all of its
+ * pages, in order, followed by any pending Zephyrgrams (see setPending), so
+ * it can back a ListAdapter directly.
+ *
+ * @author Ben Weissmann <bsw@mit.edu>
+ */
+public class ZephyrgramWindow extends AbstractList<RenderedZephyrgram> {
+    private final RenderedPage[] pages;
+    private int head = 0;
+    private int pageCount = 0;
+    // the number of Zephyrgrams in pages, not counting pending ones
+    private int size = 0;
+    private List<RenderedZephyrgram> pending = Collections.emptyList();
+
+    /**
+     * Creates an empty window.
+     * @param maxPages The maximum number of pages to hold at once
+     */
+    public ZephyrgramWindow(int maxPages) {
+        if(maxPages < 1) {
+            throw new IllegalArgumentException("maxPages must be positive");
+        }
+
+        this.pages = new RenderedPage[maxPages];
+    }
+
+    /**
+     * Adds a page to the end of the window, evicting pages from the start
+     * of the window if it's full.
+     * @return The number of Zephyrgrams evicted from the start of the window
+     */
+    public int appendPage(RenderedPage page) {
+        int evicted = 0;
+        if(pageCount == pages.length) {
+            evicted = evictFirst();
+        }
+
+        pages[ringIndex(pageCount)] = page;
+        pageCount++;
+        size += page.size();
+        modCount++;
+
+        return evicted;
+    }
+
+    /**
+     * Adds a page to the start of the window, evicting pages from the end
+     * of the window if it's full.
+     * @return The number of Zephyrgrams evicted from the end of the window
+     */
+    public int prependPage(RenderedPage page) {
+        int evicted = 0;
+        if(pageCount == pages.length) {
+            evicted = evictLast();
+        }
+
+        head = ringIndex(pages.length - 1);
+        pages[head] = page;
+        pageCount++;
+        size += page.size();
+        modCount++;
+
+        return evicted;
+    }
+
+    /**
+     * Removes every page from the window. Pending Zephyrgrams are kept.
+     */
+    public void clear() {
+        for(int i = 0; i < pages.length; i++) {
+            pages[i] = null;
+        }
+        head = 0;
+        pageCount = 0;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Returns the first page in the window, or null if the window is empty.
+     * Use this to fetch the page before the window.
+     */
+    public ZephyrgramResultSet getFirstPage() {
+        if(pageCount == 0) {
+            return null;
+        }
+        return pages[head].getResultSet();
+    }
+
+    /**
+     * Returns the last page in the window, or null if the window is empty.
+     * Use this to fetch the page after the window.
+     */
+    public ZephyrgramResultSet getLastPage() {
+        if(pageCount == 0) {
+            return null;
+        }
+        return pages[ringIndex(pageCount - 1)].getResultSet();
+    }
+
+    /**
+     * Returns the number of pages currently held
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Sets the Zephyrgrams shown after the last page: ones the user has sent
+     * that haven't been fetched from the server yet.
+     */
+    public void setPending(List<RenderedZephyrgram> pending) {
+        this.pending = pending;
+        modCount++;
+    }
+
+    @Override
+    public RenderedZephyrgram get(int location) {
+        if(location < 0 || location >= size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + location +
+                                                ", size is " + size());
+        }
+
+        if(location >= size) {
+            return pending.get(location - size);
+        }
+
+        // there are at most pages.length pages, so this walk is bounded
+        for(int i = 0; i < pageCount; i++) {
+            RenderedPage page = pages[ringIndex(i)];
+            if(location < page.size()) {
+                return page.get(location);
+            }
+            location -= page.size();
+        }
+
+        throw new IllegalStateException("ZephyrgramWindow size is out of sync");
+    }
+
+    @Override
+    public int size() {
+        return size + pending.size();
+    }
+
+    private int evictFirst() {
+        RenderedPage page = pages[head];
+        pages[head] = null;
+        head = ringIndex(1);
+        pageCount--;
+        size -= page.size();
+        return page.size();
+    }
+
+    private int evictLast() {
+        int last = ringIndex(pageCount - 1);
+        RenderedPage page = pages[last];
+        pages[last] = null;
+        pageCount--;
+        size -= page.size();
+        return page.size();
+    }
+
+    // maps an index relative to the first page to an index into pages
+    private int ringIndex(int i) {
+        return (head + i) % pages.length;
+    }
+}
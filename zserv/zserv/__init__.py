@@ -2,7 +2,7 @@ import os
 import logging
 import settings
 
-VERSION = 1
+VERSION = 3
 
 __all__ = ("VERSION", "zephyr")
 
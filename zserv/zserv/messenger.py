@@ -10,6 +10,7 @@ from threading import Thread, RLock
 from time import time
 from datetime import datetime
 import os
+import re
 from . import zephyr
 sqlite3.register_converter("BOOL", lambda v: v != "0")
 logger = logging.getLogger(__name__)
@@ -75,6 +76,58 @@ def open_or_create_db(path):
     db.commit()
     return db
 
+def create_text_index(db):
+    """
+    Create (if needed) a full-text index over message bodies, kept up to date
+    by triggers on the messages table. Messages stored before the index
+    existed are indexed when it's created.
+
+    Returns True if the index is available, or False if this sqlite doesn't
+    have FTS4, in which case text filters fall back to LIKE scans.
+    """
+    exists = db.execute(
+        "SELECT name FROM sqlite_master WHERE type='table' AND name='messages_text'"
+    ).fetchone()
+    if exists:
+        return True
+
+    try:
+        db.execute('CREATE VIRTUAL TABLE messages_text USING fts4(content="messages", message)')
+    except sqlite3.OperationalError:
+        logger.warning("sqlite has no FTS4 support; text searches will be slow.")
+        db.rollback()
+        return False
+
+    db.execute("""CREATE TRIGGER messages_text_insert AFTER INSERT ON messages BEGIN
+        INSERT INTO messages_text(docid, message) VALUES (new.id, new.message);
+    END""")
+    db.execute("""CREATE TRIGGER messages_text_delete BEFORE DELETE ON messages BEGIN
+        DELETE FROM messages_text WHERE docid=old.id;
+    END""")
+    db.execute("""CREATE TRIGGER messages_text_before_update BEFORE UPDATE OF message ON messages BEGIN
+        DELETE FROM messages_text WHERE docid=old.id;
+    END""")
+    db.execute("""CREATE TRIGGER messages_text_after_update AFTER UPDATE OF message ON messages BEGIN
+        INSERT INTO messages_text(docid, message) VALUES (new.id, new.message);
+    END""")
+    db.execute("INSERT INTO messages_text(messages_text) VALUES ('rebuild')")
+    db.commit()
+    return True
+
+# Characters that fts4's simple tokenizer treats as part of a word
+TOKEN_RE = re.compile(u"[^\x00-\x2f\x3a-\x40\x5b-\x60\x7b-\x7f]+")
+
+def to_match_expression(text):
+    """
+    Turns a text filter into a phrase query for the full-text index. The
+    last word is matched as a prefix, so "linux mess" matches
+    "Linux messages". Text with no words matches nothing.
+    """
+    tokens = TOKEN_RE.findall(text)
+    if not tokens:
+        return ""
+    return '"%s*"' % " ".join(tokens)
+
 def gen_params(num):
     return "(" + "?,"*(num-1) + "?)"
 
@@ -223,10 +276,28 @@ class Filter(object):
             "offset": offset,
         }
 
+class TextIndexedFilter(Filter):
+    """
+    A filter that matches message text using the full-text index (see
+    create_text_index) rather than scanning every message with LIKE. Text
+    matches whole words, and the last word as a prefix.
+    """
+
+    __slots__ = ()
+
+    FIELDS = dict(Filter.FIELDS, message=(
+        to_match_expression,
+        "id IN (SELECT docid FROM messages_text WHERE messages_text MATCH ?)"
+    ))
+
 class Messenger(Thread):
     def __init__(self, username, db_path=settings.ZEPHYR_DB):
         super(Messenger, self).__init__()
         self.db = open_or_create_db(db_path)
+        if create_text_index(self.db):
+            self.filter_class = TextIndexedFilter
+        else:
+            self.filter_class = Filter
         self.username = username
         self.filters = {}
         self.lock = RLock()
@@ -320,6 +391,41 @@ class Messenger(Thread):
 
 	return True
 
+    @exported
+    @sync
+    def sendAll(self, messages):
+        """
+        Send several zephyrs in one request, in order.
+
+        Arguments:
+            messages - a list of {"message": ..., "cls": ..., "instance": ...,
+                       "user": ...} dicts. Every key but "message" is optional
+                       and defaults as in send.
+
+        Returns:
+            a list with a status for each message: True if it was sent, or
+            False if sending it failed. A failure doesn't stop the rest from
+            being sent.
+
+        >>> messenger.sendAll([
+        >>>     {"message": "First.", "cls": "help", "instance": "linux"},
+        >>>     {"message": "Second.", "user": "bsw"},
+        >>> ])
+        [True, True]
+        """
+        statuses = []
+        for m in messages:
+            try:
+                statuses.append(bool(self.send(
+                    m["message"],
+                    m.get("cls", "message"),
+                    m.get("instance", "personal"),
+                    m.get("user"))))
+            except Exception:
+                logger.exception("Failed to send zephyr.")
+                statuses.append(False)
+        return statuses
+
     @exported
     def filterMessages(self, *messageFilters):
         """
@@ -338,7 +444,7 @@ class Messenger(Thread):
         # Get the messages that match the filter
         >>> messenger.get(fid)
         """
-        f = Filter(*messageFilters)
+        f = self.filter_class(*messageFilters)
         self.filters[f.fid] = f
         return str(f.fid)
 
@@ -584,6 +690,33 @@ class Messenger(Thread):
             """, (perpage, offset)))
 
 
+    @exported
+    @sync
+    def getReadClasses(self, offset=0, perpage=-1):
+        """
+        List the classes with messages, none of which are unread. Together
+        with getUnreadClasses, this lists every class exactly once.
+        Returns:
+            [{
+                cls: class,
+                unread: 0,
+                total: total_count,
+                starred: true if the class is starred,
+             },
+            ]
+
+        """
+        return self.starAndHide(self.db.execute(
+            """
+            SELECT cls, COUNT(*) AS total, COUNT(unread) AS unread
+            FROM (SELECT cls, nullif(read, 1) AS unread, timestamp FROM messages)
+            GROUP BY cls
+            HAVING COUNT(unread) = 0
+            ORDER BY MAX(timestamp) DESC
+            LIMIT ? OFFSET ?
+            """, (perpage, offset)))
+
+
     @exported
     @sync
     def getPersonals(self, offset=0, perpage=-1):
@@ -611,6 +744,34 @@ class Messenger(Thread):
             LIMIT ? OFFSET ?
             """, ("personal", "message", perpage, offset)).fetchall();
 
+    @exported
+    @sync
+    def getUnreadPersonals(self, offset=0, perpage=-1):
+        """
+        List the users that have sent personals, some of which are unread.
+        Returns:
+            [
+                {
+                    sender: sender,
+                    unread: unread_count,
+                    total: total_count,
+                }, ...
+            ]
+        """
+        return self.db.execute(
+            """
+            SELECT sender, COUNT(*) AS total, COUNT(unread) AS unread
+            FROM (
+                SELECT sender, nullif(read, 1) AS unread, timestamp
+                FROM messages
+                WHERE user IS NOT NULL AND instance=? AND cls=?
+            )
+            GROUP BY sender
+            HAVING COUNT(unread) > 0
+            ORDER BY MAX(timestamp) DESC
+            LIMIT ? OFFSET ?
+            """, ("personal", "message", perpage, offset)).fetchall()
+
     @exported
     @sync
     def getCount(self, fid=None):
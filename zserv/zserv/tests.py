@@ -185,6 +185,24 @@ class testMessenger(unittest.TestCase):
             'perpage': -1
         })
 
+    def testFilterMessagesMessageWords(self):
+        self.populateTestMessages()
+        fid = self.messenger.filterMessages({"message": "LINUX mess"})
+        msgs = self.messenger.get(fid)
+        self.assertEquals([m["message"] for m in msgs["messages"]],
+                          [u'First linux message.', u'Second linux message.'])
+
+        fid = self.messenger.filterMessages({"message": "..."})
+        self.assertEquals(self.messenger.get(fid)["messages"], [])
+
+    def testFilterMessagesMessageDeleted(self):
+        self.populateTestMessages()
+        self.messenger.deleteFilter(self.messenger.filterMessages({"instance": "linux"}))
+        fid = self.messenger.filterMessages({"message": "linux"})
+        msgs = self.messenger.get(fid)
+        self.assertEquals([m["message"] for m in msgs["messages"]],
+                          [u'Linux.d message.'])
+
     def testFilterMessagesInstance(self):
         self.populateTestMessages()
         fid = self.messenger.filterMessages({"instance": "linux"})
@@ -255,6 +273,20 @@ class testMessenger(unittest.TestCase):
                     ]
                    )
 
+    def testGetReadClasses(self):
+        self.populateTestMessages()
+        self.assertEquals(self.messenger.getReadClasses(), [])
+
+        fid = self.messenger.filterMessages({"cls": "offtopic"})
+        self.messenger.markFilterRead(fid)
+        self.assertEquals(self.messenger.getReadClasses(),
+                    [
+                        {'cls': u'offtopic', 'hidden':False, 'starred': False, 'total': 1, 'unread': 0},
+                    ]
+                   )
+        self.assertEquals([c["cls"] for c in self.messenger.getUnreadClasses()],
+                          [u'help', u'message'])
+
     def testGetInstances(self):
         self.populateTestMessages()
         self.assertEquals(self.messenger.getInstances("help"),
@@ -274,6 +306,19 @@ class testMessenger(unittest.TestCase):
                     ]
                    )
 
+    def testGetUnreadPersonals(self):
+        self.populateTestMessages()
+        self.assertEquals([p["sender"] for p in self.messenger.getUnreadPersonals()],
+                          [u'bsw', u'steb'])
+
+        fid = self.messenger.filterMessages({"cls": "message", "sender": "bsw"})
+        self.messenger.markFilterRead(fid)
+        self.assertEquals(self.messenger.getUnreadPersonals(),
+                    [
+                        {'sender': u'steb', 'total': 1, 'unread': 1},
+                    ]
+                   )
+
     def testMarkReadUnread(self):
         self.populateTestMessages()
         fid = self.messenger.filterMessages({"sender": "bsw"})
@@ -284,6 +329,25 @@ class testMessenger(unittest.TestCase):
         self.messenger.markFilterUnread(fid, 1, 2)
         self.assertTrue(all( not i["read"] for i in self.messenger.get(fid)["messages"]))
 
+    def testSendAll(self):
+        sent = []
+        def send(message, cls="message", instance="personal", user=None):
+            if message == "FAIL":
+                raise IOError("couldn't send")
+            sent.append((message, cls, instance, user))
+            return True
+        self.messenger.send = send
+
+        self.assertEquals(self.messenger.sendAll([
+            {"message": "M1", "cls": "help", "instance": "linux"},
+            {"message": "FAIL", "user": "bsw"},
+            {"message": "M3", "user": "bsw"},
+        ]), [True, False, True])
+        self.assertEquals(sent, [
+            ("M1", "help", "linux", None),
+            ("M3", "message", "personal", "bsw"),
+        ])
+
     def testDelete(self):
         fid = self.messenger.filterMessages({"sender": "bsw"})
         self.messenger.deleteFilter(fid)